@@ -0,0 +1,51 @@
+package com.devsmart.kademlia;
+
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IDBenchmark {
+
+    private static final int NUM_IDS = 1024;
+
+    private ID[] mIds;
+    private int mIndex;
+
+    static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        mIds = new ID[NUM_IDS];
+        for(int i=0;i<NUM_IDS;i++) {
+            mIds[i] = createRandomId(r);
+        }
+    }
+
+    private ID next() {
+        mIndex = (mIndex + 1) & (NUM_IDS - 1);
+        return mIds[mIndex];
+    }
+
+    @Benchmark
+    public int compareDistance() {
+        return ID.compareDistance(next(), next(), next());
+    }
+
+    @Benchmark
+    public int getNumSharedPrefixBits() {
+        return next().getNumSharedPrefixBits(next());
+    }
+}
@@ -0,0 +1,60 @@
+package com.devsmart.kademlia;
+
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    private final MessagePool mPool = new MessagePool(true);
+    private ArrayList<Peer> mPeers;
+    private Message mResponse;
+    private final Message.FindPeersMessage.PeerCursor mCursor = new Message.FindPeersMessage.PeerCursor();
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        mPeers = new ArrayList<Peer>();
+        for(int i=0;i<Message.FindPeersMessage.MAX_PEERS;i++) {
+            mPeers.add(new Peer(IDBenchmark.createRandomId(r), new InetSocketAddress("10.0.0." + i, 5000 + i)));
+        }
+
+        mResponse = mPool.acquire(Message.FindPeersMessage.MAX_RESPONSE_LENGTH);
+        Message.FindPeersMessage.formatResponse(mResponse, mPeers);
+    }
+
+    @Benchmark
+    public int findPeersFormatResponse() {
+        Message msg = mPool.acquire(Message.FindPeersMessage.MAX_RESPONSE_LENGTH);
+        Message.FindPeersMessage.formatResponse(msg, mPeers);
+        int retval = msg.getLength();
+        mPool.release(msg);
+        return retval;
+    }
+
+    @Benchmark
+    public Collection<Peer> findPeersGetPeers() {
+        return Message.FindPeersMessage.getPeers(mResponse);
+    }
+
+    @Benchmark
+    public long findPeersCursor() {
+        long retval = 0;
+        Message.FindPeersMessage.PeerCursor cursor = mCursor.reset(mResponse);
+        while(cursor.next()) {
+            retval += cursor.getIdHigh() ^ cursor.getPackedAddress();
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,107 @@
+package com.devsmart.kademlia;
+
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingTableBenchmark {
+
+    private static final int NUM_TARGETS = 1024;
+
+    private static final Predicate<Peer> ALL = new Predicate<Peer>() {
+        @Override
+        public boolean test(Peer peer) {
+            return true;
+        }
+    };
+
+    /**
+     * Number of nodes in the simulated network. Bucket {@code i} covers 1/2^(i+1) of the
+     * ID space, so it is filled with that share of the network, up to k peers. Only the
+     * first log2(networkSize) or so buckets fill up, as in a real table.
+     */
+    @Param({"1000", "100000", "10000000"})
+    public long networkSize;
+
+    private RoutingTable mTable;
+    private int mNumPeers;
+    private ID[] mPeerIds;
+    private InetSocketAddress[] mPeerAddresses;
+    private ID[] mUnknownIds;
+    private ID[] mTargets;
+    private int mIndex;
+
+    private static InetSocketAddress createAddress(int i) {
+        return new InetSocketAddress("10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF), 5000);
+    }
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        mTable = new RoutingTable(IDBenchmark.createRandomId(r), RoutingTable.DEFAULT_K);
+        mPeerIds = new ID[RoutingTable.NUM_BUCKETS * RoutingTable.DEFAULT_K];
+        mPeerAddresses = new InetSocketAddress[mPeerIds.length];
+        mNumPeers = 0;
+        long share = networkSize;
+        for(int i=0;i<RoutingTable.NUM_BUCKETS;i++) {
+            share /= 2;
+            final long count = Math.min(RoutingTable.DEFAULT_K, share);
+            for(int j=0;j<count;j++) {
+                ID id = mTable.getRandomId(i, r);
+                InetSocketAddress address = createAddress(mNumPeers);
+                mTable.getPeer(id, address);
+                mPeerIds[mNumPeers] = id;
+                mPeerAddresses[mNumPeers] = address;
+                mNumPeers++;
+            }
+        }
+
+        //random IDs fall in the first few buckets, which are full, and there are far more
+        //of them than the replacement caches hold, so every lookup misses
+        mUnknownIds = new ID[NUM_TARGETS];
+        mTargets = new ID[NUM_TARGETS];
+        for(int i=0;i<NUM_TARGETS;i++) {
+            mUnknownIds[i] = IDBenchmark.createRandomId(r);
+            mTargets[i] = IDBenchmark.createRandomId(r);
+        }
+    }
+
+    private int next() {
+        mIndex = (mIndex + 1) & (NUM_TARGETS - 1);
+        return mIndex;
+    }
+
+    @Benchmark
+    public Peer getPeerExisting() {
+        int i = next() % mNumPeers;
+        return mTable.getPeer(mPeerIds[i], mPeerAddresses[i]);
+    }
+
+    @Benchmark
+    public Peer getPeerUnknown() {
+        int i = next();
+        return mTable.getPeer(mUnknownIds[i], mPeerAddresses[i % mNumPeers]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Peer> getRoutingPeers() {
+        return mTable.getRoutingPeers(mTargets[next()]);
+    }
+
+    @Benchmark
+    public List<Peer> getClosestPeers() {
+        return mTable.getClosestPeers(mTargets[next()], Message.FindPeersMessage.MAX_PEERS, ALL);
+    }
+}
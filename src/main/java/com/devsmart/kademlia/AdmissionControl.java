@@ -0,0 +1,138 @@
+package com.devsmart.kademlia;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which unsolicited inbound messages a node is willing to handle, so a peer
+ * flooding requests cannot crowd out everyone else. Each source address gets a token
+ * bucket, but instead of a table that grows with every address seen, the buckets live
+ * in a fixed count-min sketch: every source maps to one cell in each of a few rows and
+ * its bucket is the least drained of those cells. Collisions can only make a source
+ * look busier than it is, never let it exceed its own rate. Buckets are kept as
+ * theoretical arrival times (the generic cell rate algorithm), so a cell is a single
+ * long that is updated with compare-and-set from any receive thread.
+ *
+ * On top of the per-source limit, requests are shed once the node as a whole is over
+ * its request budget or one of its send queues is backed up. Responses to requests
+ * the node is waiting on are not subject to any of this; see {@link Node}.
+ *
+ * Sources are keyed by IP address alone, since a spoofer can pick any port, so nodes
+ * sharing one host share a bucket. The sketch takes 128KiB and is only allocated when
+ * the first request is checked.
+ */
+public class AdmissionControl {
+
+    public static final double DEFAULT_SOURCE_RATE = 100;
+    public static final int DEFAULT_SOURCE_BURST = 200;
+    public static final double DEFAULT_TOTAL_RATE = 20000;
+    public static final int DEFAULT_TOTAL_BURST = 2000;
+    /**
+     * Half of one {@link UdpTransport} shard's send queue, which is where it starts
+     * refusing low priority traffic.
+     */
+    public static final int DEFAULT_MAX_SEND_QUEUE_DEPTH = UdpTransport.DEFAULT_SEND_QUEUE_CAPACITY / 2;
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH_BITS = 12;
+    private static final int WIDTH = 1 << WIDTH_BITS;
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private volatile AtomicLongArray mSources;
+    private final AtomicLong mTotal = new AtomicLong();
+    private final long mSourceInterval;
+    private final long mSourceLimit;
+    private final long mTotalInterval;
+    private final long mTotalLimit;
+    private final int mMaxSendQueueDepth;
+
+    public AdmissionControl() {
+        this(DEFAULT_SOURCE_RATE, DEFAULT_SOURCE_BURST, DEFAULT_TOTAL_RATE, DEFAULT_TOTAL_BURST, DEFAULT_MAX_SEND_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param sourceRate requests per second allowed from a single source address
+     * @param sourceBurst requests a single source may send at once after being quiet
+     * @param totalRate requests per second the node handles from all sources together
+     * @param totalBurst requests the node handles at once after being quiet
+     * @param maxSendQueueDepth shed all requests while any one send queue holds more
+     *                          messages than this
+     */
+    public AdmissionControl(double sourceRate, int sourceBurst, double totalRate, int totalBurst, int maxSendQueueDepth) {
+        mSourceInterval = (long) (1000000 / sourceRate);
+        mSourceLimit = sourceBurst * mSourceInterval;
+        mTotalInterval = (long) (1000000 / totalRate);
+        mTotalLimit = totalBurst * mTotalInterval;
+        mMaxSendQueueDepth = maxSendQueueDepth;
+    }
+
+    private static int getIndex(int row, int source) {
+        long h = (source ^ SEEDS[row]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= SEEDS[row];
+        return row * WIDTH + (int) (h >>> (64 - WIDTH_BITS));
+    }
+
+    /**
+     * Decide whether to handle a request.
+     * @param source the source address, for example {@code InetAddress.hashCode()}
+     * @param cost the number of tokens the request spends, so costlier requests run out sooner
+     * @param sendQueueDepth the number of messages waiting in the fullest send queue
+     * @return true to handle the request, false to drop it
+     */
+    public boolean admit(int source, int cost, long now, int sendQueueDepth) {
+        if(sendQueueDepth > mMaxSendQueueDepth) {
+            return false;
+        }
+
+        final AtomicLongArray sources = getSources();
+        final long nowMicros = now * 1000;
+        long tat = Long.MAX_VALUE;
+        for(int i=0;i<DEPTH;i++) {
+            tat = Math.min(tat, sources.get(getIndex(i, source)));
+        }
+        final long sourceTat = Math.max(tat, nowMicros) + cost * mSourceInterval;
+        if(sourceTat - nowMicros > mSourceLimit) {
+            return false;
+        }
+        //conservative update: only raise the cells that are behind this source's new time
+        for(int i=0;i<DEPTH;i++) {
+            raise(sources, getIndex(i, source), sourceTat);
+        }
+
+        long total;
+        long totalTat;
+        do {
+            total = mTotal.get();
+            totalTat = Math.max(total, nowMicros) + cost * mTotalInterval;
+            if(totalTat - nowMicros > mTotalLimit) {
+                return false;
+            }
+        } while(!mTotal.compareAndSet(total, totalTat));
+        return true;
+    }
+
+    private AtomicLongArray getSources() {
+        AtomicLongArray retval = mSources;
+        if(retval == null) {
+            synchronized (this) {
+                retval = mSources;
+                if(retval == null) {
+                    retval = new AtomicLongArray(DEPTH * WIDTH);
+                    mSources = retval;
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static void raise(AtomicLongArray sources, int index, long value) {
+        long current;
+        do {
+            current = sources.get(index);
+        } while(current < value && !sources.compareAndSet(index, current, value));
+    }
+}
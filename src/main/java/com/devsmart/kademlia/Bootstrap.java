@@ -0,0 +1,144 @@
+package com.devsmart.kademlia;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Joins the network from a set of seed addresses. All seeds are pinged at once, and
+ * once they have answered or timed out a lookup for the node's own ID fills the
+ * buckets near it. Then every empty bucket farther out than the closest non-empty one
+ * gets a lookup for a random ID in its range, all running concurrently. The future
+ * completes with the number of peers in the routing table once those lookups finish.
+ *
+ * All state is confined to the node's event loop.
+ */
+class Bootstrap {
+
+    private static final Logger logger = LoggerFactory.getLogger(Bootstrap.class);
+
+    private final Node mNode;
+    private final Collection<InetSocketAddress> mSeeds;
+    private final Node.BootstrapListener mListener;
+    private final Random mRandom = new Random();
+    final CompletableFuture<Integer> mFuture = new CompletableFuture<Integer>();
+    private int mRemaining;
+    private int mNumAnswered;
+
+    Bootstrap(Node node, Collection<InetSocketAddress> seeds, Node.BootstrapListener listener) {
+        mNode = node;
+        mSeeds = new ArrayList<InetSocketAddress>(seeds);
+        mListener = listener;
+    }
+
+    void start() {
+        if(mSeeds.isEmpty()) {
+            mFuture.completeExceptionally(new IllegalArgumentException("no seeds"));
+            return;
+        }
+
+        mRemaining = mSeeds.size();
+        for(InetSocketAddress seed : mSeeds) {
+            mNode.ping(seed).whenComplete(new BiConsumer<Message, Throwable>() {
+                @Override
+                public void accept(Message response, Throwable error) {
+                    onSeedResult(error);
+                }
+            });
+        }
+    }
+
+    private void onSeedResult(Throwable error) {
+        if(error == null) {
+            mNumAnswered++;
+        }
+        if(--mRemaining > 0) {
+            return;
+        }
+
+        if(mNumAnswered == 0) {
+            mFuture.completeExceptionally(new IOException("none of " + mSeeds.size() + " seeds answered"));
+            return;
+        }
+        reportProgress();
+
+        final ID localId = mNode.getLocalId();
+        mNode.lookup(localId, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA).whenComplete(new BiConsumer<List<Peer>, Throwable>() {
+            @Override
+            public void accept(List<Peer> peers, Throwable error) {
+                onSelfLookup();
+            }
+        });
+    }
+
+    private void onSelfLookup() {
+        reportProgress();
+
+        final RoutingTable routingTable = mNode.getRoutingTable();
+        final int[] sizes = routingTable.getBucketSizes();
+        int closest = -1;
+        for(int i=0;i<sizes.length;i++) {
+            if(sizes[i] > 0) {
+                closest = i;
+            }
+        }
+
+        mRemaining = 0;
+        for(int i=0;i<closest;i++) {
+            if(sizes[i] == 0) {
+                mRemaining++;
+                ID target = routingTable.getRandomId(i, mRandom);
+                mNode.lookup(target, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA).whenComplete(new BiConsumer<List<Peer>, Throwable>() {
+                    @Override
+                    public void accept(List<Peer> peers, Throwable error) {
+                        reportProgress();
+                        if(--mRemaining == 0) {
+                            finish();
+                        }
+                    }
+                });
+            }
+        }
+        if(mRemaining == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        final int numPeers = getNumPeers();
+        logger.info("bootstrapped from {} of {} seeds with {} peers", mNumAnswered, mSeeds.size(), numPeers);
+        mFuture.complete(numPeers);
+    }
+
+    private int getNumPeers() {
+        int retval = 0;
+        for(int size : mNode.getRoutingTable().getBucketSizes()) {
+            retval += size;
+        }
+        return retval;
+    }
+
+    private void reportProgress() {
+        if(mListener == null) {
+            return;
+        }
+        int numPeers = 0;
+        int numBuckets = 0;
+        for(int size : mNode.getRoutingTable().getBucketSizes()) {
+            numPeers += size;
+            if(size > 0) {
+                numBuckets++;
+            }
+        }
+        mListener.onProgress(numPeers, numBuckets);
+    }
+}
@@ -0,0 +1,62 @@
+package com.devsmart.kademlia;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Refreshes buckets that no lookup has gone into for a while by looking up a random ID
+ * in their range. Lookups the node runs anyway keep their buckets fresh, so only idle
+ * ranges cost any traffic. To avoid bursts, at most one bucket, the stalest, is
+ * refreshed per check, and checks run every few seconds with some jitter.
+ *
+ * Not thread safe: runs on the node's event loop.
+ */
+class BucketRefresher extends TimingWheel.Timeout {
+
+    private static final Logger logger = LoggerFactory.getLogger(BucketRefresher.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 15 * 60 * 1000;
+    private static final long CHECK_INTERVAL = 5 * 1000;
+
+    private final Node mNode;
+    private final TimingWheel mWheel;
+    private final long mRefreshInterval;
+    private final Random mRandom = new Random();
+    private volatile int mNumRefreshes;
+
+    BucketRefresher(Node node, TimingWheel wheel, long refreshInterval) {
+        mNode = node;
+        mWheel = wheel;
+        mRefreshInterval = refreshInterval;
+    }
+
+    void start(long now) {
+        schedule(now);
+    }
+
+    public int getNumRefreshes() {
+        return mNumRefreshes;
+    }
+
+    private void schedule(long now) {
+        mWheel.schedule(this, now + CHECK_INTERVAL / 2 + mRandom.nextInt((int) CHECK_INTERVAL));
+    }
+
+    @Override
+    protected void onExpired(long now) {
+        final RoutingTable routingTable = mNode.getRoutingTable();
+        final int index = routingTable.getStalestBucket(now, mRefreshInterval);
+        if(index >= 0) {
+            ID target = routingTable.getRandomId(index, mRandom);
+            //the lookup only starts on a later loop iteration; don't let the next check pick it again
+            routingTable.touchBucket(target, now);
+            mNumRefreshes++;
+            logger.debug("refreshing bucket {}", index);
+            mNode.lookup(target, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA);
+        }
+        schedule(now);
+    }
+}
@@ -0,0 +1,21 @@
+package com.devsmart.kademlia;
+
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A monotonic source of time in milliseconds. Peer liveness, timeouts and timers all
+ * read time through a Clock so tests and simulations can substitute a
+ * {@link VirtualClock}.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    long currentTimeMillis();
+}
@@ -4,27 +4,118 @@ package com.devsmart.kademlia;
 import com.google.common.io.BaseEncoding;
 
 import java.math.BigInteger;
-import java.util.Arrays;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A 160-bit identifier. The value is held in three big-endian words so that XOR
+ * distance comparisons and prefix lengths are computed with a few word operations
+ * and never allocate.
+ */
 public class ID {
     public static final int NUM_BYTES = 20;
 
-    private byte[] mData = new byte[NUM_BYTES];
+    private final long mHigh;
+    private final long mMid;
+    private final int mLow;
 
     public static ID fromBase64String(String str) {
         byte[] data = BaseEncoding.base64Url().decode(str);
         return new ID(data, 0);
     }
 
+    /**
+     * Read an ID from {@code buf} starting at the absolute index {@code offset}.
+     * The buffer's position is not changed.
+     */
+    public static ID read(ByteBuffer buf, int offset) {
+        return new ID(readHigh(buf, offset), readMid(buf, offset), readLow(buf, offset));
+    }
+
+    static long readHigh(ByteBuffer buf, int offset) {
+        long retval = buf.getLong(offset);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? retval : Long.reverseBytes(retval);
+    }
+
+    static long readMid(ByteBuffer buf, int offset) {
+        long retval = buf.getLong(offset + 8);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? retval : Long.reverseBytes(retval);
+    }
+
+    static int readLow(ByteBuffer buf, int offset) {
+        int retval = buf.getInt(offset + 16);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? retval : Integer.reverseBytes(retval);
+    }
+
+    ID(long high, long mid, int low) {
+        mHigh = high;
+        mMid = mid;
+        mLow = low;
+    }
+
     public ID(byte[] buf, int offset) {
-        System.arraycopy(buf, offset, mData, 0, NUM_BYTES);
+        mHigh = readLong(buf, offset);
+        mMid = readLong(buf, offset + 8);
+        mLow = (int) (readLong(buf, offset + 12));
+    }
+
+    private static long readLong(byte[] buf, int offset) {
+        long retval = 0;
+        for(int i=0;i<8;i++) {
+            retval = (retval << 8) | (0xFF & buf[offset + i]);
+        }
+        return retval;
+    }
+
+    private static void writeLong(byte[] buf, int offset, long value, int numBytes) {
+        for(int i=numBytes-1;i>=0;i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    long getHigh() {
+        return mHigh;
+    }
+
+    long getMid() {
+        return mMid;
+    }
+
+    int getLow() {
+        return mLow;
     }
 
     public int write(byte[] buf, int offset) {
-        System.arraycopy(mData, 0, buf, offset, NUM_BYTES);
+        writeLong(buf, offset, mHigh, 8);
+        writeLong(buf, offset + 8, mMid, 8);
+        writeLong(buf, offset + 16, mLow, 4);
         return NUM_BYTES;
     }
 
+    /**
+     * Write this ID into {@code buf} at the absolute index {@code offset}.
+     * The buffer's position is not changed.
+     */
+    public int write(ByteBuffer buf, int offset) {
+        if(buf.order() == ByteOrder.BIG_ENDIAN) {
+            buf.putLong(offset, mHigh);
+            buf.putLong(offset + 8, mMid);
+            buf.putInt(offset + 16, mLow);
+        } else {
+            buf.putLong(offset, Long.reverseBytes(mHigh));
+            buf.putLong(offset + 8, Long.reverseBytes(mMid));
+            buf.putInt(offset + 16, Integer.reverseBytes(mLow));
+        }
+        return NUM_BYTES;
+    }
+
+    public byte[] getBytes() {
+        byte[] retval = new byte[NUM_BYTES];
+        write(retval, 0);
+        return retval;
+    }
+
     /**
      * Compare the distance between ac and bc. Return -1 if ac < bc,
      * 1 if ac > bc and 0 if ac == bc.
@@ -34,37 +125,53 @@ public class ID {
      * @return
      */
     public static int compareDistance(ID a, ID b, ID c) {
-        for(int i=0;i<NUM_BYTES;i++) {
-            int ac = a.mData[i] ^ c.mData[i];
-            int bc = b.mData[i] ^ c.mData[i];
-
-            if(ac < bc) {
-                return -1;
-            } else if(ac > bc) {
-                return 1;
+        int retval = Long.compareUnsigned(a.mHigh ^ c.mHigh, b.mHigh ^ c.mHigh);
+        if(retval == 0) {
+            retval = Long.compareUnsigned(a.mMid ^ c.mMid, b.mMid ^ c.mMid);
+            if(retval == 0) {
+                retval = Integer.compareUnsigned(a.mLow ^ c.mLow, b.mLow ^ c.mLow);
             }
         }
+        return retval;
+    }
 
-        return 0;
+    /**
+     * {@link #compareDistance(ID, ID, ID)} against a target given as its ID words.
+     */
+    static int compareDistance(ID a, ID b, long high, long mid, int low) {
+        int retval = Long.compareUnsigned(a.mHigh ^ high, b.mHigh ^ high);
+        if(retval == 0) {
+            retval = Long.compareUnsigned(a.mMid ^ mid, b.mMid ^ mid);
+            if(retval == 0) {
+                retval = Integer.compareUnsigned(a.mLow ^ low, b.mLow ^ low);
+            }
+        }
+        return retval;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(mData);
+        long h = mHigh * 31 + mMid;
+        h = h * 31 + mLow;
+        return (int) (h ^ (h >>> 32));
     }
 
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof ID) {
             ID o = (ID) obj;
-            return Arrays.equals(mData, o.mData);
+            return mHigh == o.mHigh && mMid == o.mMid && mLow == o.mLow;
         } else {
             return false;
         }
     }
 
+    boolean equals(long high, long mid, int low) {
+        return mHigh == high && mMid == mid && mLow == low;
+    }
+
     public String toString(BaseEncoding encoding) {
-        return encoding.encode(mData, 0, NUM_BYTES);
+        return encoding.encode(getBytes(), 0, NUM_BYTES);
     }
 
     @Override
@@ -73,11 +180,7 @@ public class ID {
     }
 
     public byte[] distance(ID o) {
-        byte[] retval = new byte[NUM_BYTES];
-        for(int i=0;i<NUM_BYTES;i++) {
-            retval[i] = (byte) (mData[i] ^ o.mData[i]);
-        }
-        return retval;
+        return new ID(mHigh ^ o.mHigh, mMid ^ o.mMid, mLow ^ o.mLow).getBytes();
     }
 
     public BigInteger getIntDistance(ID o) {
@@ -86,39 +189,19 @@ public class ID {
     }
 
     public int getNumSharedPrefixBits(ID o) {
-        int retval = 0;
-        for(int i=0;i<NUM_BYTES;i++) {
-
-            int distance = 0xFF & (mData[i] ^ o.mData[i]);
-            if(distance < 1) {
-                retval += 8;
-            } else if(distance < 2) {
-                retval += 7;
-                break;
-            } else if(distance < 4) {
-                retval += 6;
-                break;
-            } else if(distance < 8) {
-                retval += 5;
-                break;
-            } else if(distance < 16) {
-                retval += 4;
-                break;
-            } else if(distance < 32) {
-                retval += 3;
-                break;
-            } else if(distance < 64) {
-                retval += 2;
-                break;
-            } else if(distance < 128) {
-                retval += 1;
-                break;
-            } else {
-                break;
-            }
-        }
+        return getNumSharedPrefixBits(o.mHigh, o.mMid, o.mLow);
+    }
 
-        return retval;
+    int getNumSharedPrefixBits(long high, long mid, int low) {
+        long x = mHigh ^ high;
+        if(x != 0) {
+            return Long.numberOfLeadingZeros(x);
+        }
+        x = mMid ^ mid;
+        if(x != 0) {
+            return 64 + Long.numberOfLeadingZeros(x);
+        }
+        return 128 + Integer.numberOfLeadingZeros(mLow ^ low);
     }
 
 
@@ -0,0 +1,187 @@
+package com.devsmart.kademlia;
+
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A Kademlia k-bucket: at most k live entries plus a replacement cache of the most
+ * recently learned peers that did not fit. Entries are ranked by the time of their
+ * last {@link Peer#markSeen()}, so the least recently seen peer is the one probed
+ * and evicted when a newcomer is waiting.
+ *
+ * Writers are serialized on the bucket's monitor and publish a new immutable array of
+ * entries on every change, so readers walk a consistent version without locking.
+ */
+public class KBucket {
+
+    private static final Peer[] EMPTY = new Peer[0];
+
+    final int mK;
+    private final PeerIndex mIndex;
+    private volatile Peer[] mPeers = EMPTY;
+    final ArrayList<Peer> mReplacements;
+    Peer mProbe;
+    long mProbeTime;
+
+    /**
+     * When a lookup last targeted this bucket's range; see {@link RoutingTable#touchBucket(ID, long)}.
+     */
+    volatile long mLastTouched;
+
+    KBucket(int k, PeerIndex index) {
+        mK = k;
+        mIndex = index;
+        mReplacements = new ArrayList<Peer>(k);
+    }
+
+    public long getLastTouched() {
+        return mLastTouched;
+    }
+
+    public int getK() {
+        return mK;
+    }
+
+    public int size() {
+        return mPeers.length;
+    }
+
+    public boolean isFull() {
+        return mPeers.length >= mK;
+    }
+
+    /**
+     * The current version of this bucket's entries. The returned array is shared and
+     * must not be modified.
+     */
+    Peer[] snapshot() {
+        return mPeers;
+    }
+
+    public void getPeers(Collection<Peer> peerList) {
+        peerList.addAll(Arrays.asList(mPeers));
+    }
+
+    public synchronized void getReplacements(Collection<Peer> peerList) {
+        peerList.addAll(mReplacements);
+    }
+
+    public boolean contains(Peer peer) {
+        for(Peer p : mPeers) {
+            if(p.equals(peer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find an entry or replacement by scanning. Unlike the lock-free {@link PeerIndex}
+     * lookup this never misses a peer of this bucket. Must be called holding the
+     * bucket's monitor.
+     */
+    Peer find(ID id, InetSocketAddress socketAddress) {
+        for(Peer p : mPeers) {
+            if(p.id.equals(id) && p.getInetSocketAddress().equals(socketAddress)) {
+                return p;
+            }
+        }
+        for(int i=0;i<mReplacements.size();i++) {
+            Peer p = mReplacements.get(i);
+            if(p.id.equals(id) && p.getInetSocketAddress().equals(socketAddress)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    void add(Peer peer) {
+        Peer[] peers = Arrays.copyOf(mPeers, mPeers.length + 1);
+        peers[peers.length - 1] = peer;
+        mPeers = peers;
+        mIndex.put(peer);
+    }
+
+    Peer getLeastRecentlySeen() {
+        Peer retval = null;
+        for(Peer p : mPeers) {
+            if(retval == null || p.getLastSeenTime() < retval.getLastSeenTime()) {
+                retval = p;
+            }
+        }
+        return retval;
+    }
+
+    void addReplacement(Peer peer) {
+        if(mReplacements.size() >= mK) {
+            mIndex.remove(mReplacements.remove(0));
+        }
+        mReplacements.add(peer);
+        mIndex.put(peer);
+    }
+
+    /**
+     * Move a replacement into the bucket. Replacements that are Alive at {@code now}
+     * are preferred, and among those the one with the lowest smoothed RTT; otherwise
+     * the most recently seen replacement is promoted.
+     * @return the promoted peer or null if the replacement cache is empty
+     */
+    Peer promoteReplacement(long now) {
+        int best = -1;
+        for(int i=0;i<mReplacements.size();i++) {
+            if(best == -1 || isBetterReplacement(mReplacements.get(i), mReplacements.get(best), now)) {
+                best = i;
+            }
+        }
+        if(best == -1) {
+            return null;
+        }
+        Peer retval = mReplacements.remove(best);
+        add(retval);
+        return retval;
+    }
+
+    private static boolean isBetterReplacement(Peer a, Peer b, long now) {
+        final boolean aAlive = a.getStatus(now) == Peer.Status.Alive;
+        final boolean bAlive = b.getStatus(now) == Peer.Status.Alive;
+        if(aAlive != bAlive) {
+            return aAlive;
+        }
+        if(aAlive) {
+            final boolean aTimed = a.getRtt().hasSample();
+            final boolean bTimed = b.getRtt().hasSample();
+            if(aTimed != bTimed) {
+                return aTimed;
+            }
+            if(aTimed && a.getRtt().getSrtt() != b.getRtt().getSrtt()) {
+                return a.getRtt().getSrtt() < b.getRtt().getSrtt();
+            }
+        }
+        return a.getLastSeenTime() >= b.getLastSeenTime();
+    }
+
+    boolean remove(Peer peer) {
+        if(mProbe == peer) {
+            mProbe = null;
+        }
+        if(mReplacements.remove(peer)) {
+            mIndex.remove(peer);
+        }
+
+        final Peer[] peers = mPeers;
+        for(int i=0;i<peers.length;i++) {
+            if(peers[i].equals(peer)) {
+                Peer[] newPeers = new Peer[peers.length - 1];
+                System.arraycopy(peers, 0, newPeers, 0, i);
+                System.arraycopy(peers, i + 1, newPeers, i, newPeers.length - i);
+                mPeers = newPeers;
+                mIndex.remove(peers[i]);
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package com.devsmart.kademlia;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Keeps the peers in the routing table alive with a single timing wheel instead of a
+ * scheduled task per peer. A peer is only pinged once it has been idle for a full
+ * keep-alive interval; peers we heard from recently are simply rescheduled for when
+ * they would become idle. The pings due on a tick are sent together as one burst, as
+ * tracked requests so that their round trips feed each peer's RTT estimate. Keep-alives
+ * are sent at low priority and are dropped first when the send queue backs up.
+ *
+ * Not thread safe: all methods must be called from the node's event loop.
+ */
+class KeepAliveManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeepAliveManager.class);
+
+    static final long KEEP_ALIVE_INTERVAL = 1500;
+    private static final Random RANDOM = new Random();
+
+    private final Node mNode;
+    private final TimingWheel mWheel;
+    private final ArrayList<Peer> mPingBurst = new ArrayList<Peer>();
+    private final ArrayList<Peer> mDead = new ArrayList<Peer>();
+    private int mNumPeers;
+
+    KeepAliveManager(Node node, TimingWheel wheel) {
+        mNode = node;
+        mWheel = wheel;
+    }
+
+    public int size() {
+        return mNumPeers;
+    }
+
+    public void add(Peer peer, long now) {
+        if(peer.mKeepAliveTask == null) {
+            KeepAliveTask task = new KeepAliveTask(peer, this);
+            peer.mKeepAliveTask = task;
+            mNumPeers++;
+
+            long wait = 100 + RANDOM.nextInt(600);
+            mWheel.schedule(task, now + wait);
+        }
+    }
+
+    public void remove(Peer peer) {
+        KeepAliveTask task = peer.mKeepAliveTask;
+        if(task != null) {
+            mWheel.cancel(task);
+            peer.mKeepAliveTask = null;
+            mNumPeers--;
+        }
+    }
+
+    void onExpired(KeepAliveTask task, long now) {
+        final Peer peer = task.mPeer;
+        if(peer.getStatus(now) == Peer.Status.Dead) {
+            mDead.add(peer);
+            return;
+        }
+
+        final long lastSeen = peer.getLastSeenTime();
+        final long idle = lastSeen == Long.MIN_VALUE ? KEEP_ALIVE_INTERVAL : now - lastSeen;
+        if(idle >= KEEP_ALIVE_INTERVAL) {
+            mPingBurst.add(peer);
+            mWheel.schedule(task, now + KEEP_ALIVE_INTERVAL);
+        } else {
+            mWheel.schedule(task, now + KEEP_ALIVE_INTERVAL - idle);
+        }
+    }
+
+    /**
+     * Advance the wheel to {@code now} and send the pings that came due.
+     */
+    public void onTick(long now) {
+        mWheel.advance(now);
+
+        if(!mPingBurst.isEmpty()) {
+            logger.debug("sending {} keep-alive PINGs", mPingBurst.size());
+            for(int i=0;i<mPingBurst.size();i++) {
+                mNode.ping(mPingBurst.get(i), Transport.PRIORITY_LOW);
+            }
+            mPingBurst.clear();
+        }
+
+        if(!mDead.isEmpty()) {
+            for(int i=0;i<mDead.size();i++) {
+                Peer peer = mDead.get(i);
+                logger.debug("{} is dead", peer);
+                remove(peer);
+                mNode.getRoutingTable().removePeer(peer);
+            }
+            mDead.clear();
+        }
+    }
+}
@@ -1,39 +1,22 @@
 package com.devsmart.kademlia;
 
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+/**
+ * A peer's entry in the keep-alive timing wheel. There is at most one per peer in the
+ * routing table and it is reused for every ping.
+ */
+class KeepAliveTask extends TimingWheel.Timeout {
 
-import java.net.DatagramSocket;
+    final Peer mPeer;
+    private final KeepAliveManager mManager;
 
-public class KeepAliveTask implements Runnable {
-
-    private static final Logger logger = LoggerFactory.getLogger(KeepAliveTask.class);
-
-    private final Peer mPeer;
-    private final Message mPingMessage = new Message();
-    private final ID mLocalId;
-    private final DatagramSocket mSocket;
-
-    public KeepAliveTask(Peer peer, ID localId, DatagramSocket socket) {
+    KeepAliveTask(Peer peer, KeepAliveManager manager) {
         mPeer = peer;
-        mLocalId = localId;
-        mSocket = socket;
+        mManager = manager;
     }
 
     @Override
-    public void run() {
-
-        try {
-            //send ping
-            logger.debug("sending PING to {}", mPeer);
-            Message.PingMessage.formatRequest(mPingMessage, mLocalId);
-            mPingMessage.mPacket.setSocketAddress(mPeer.getInetSocketAddress());
-            mSocket.send(mPingMessage.mPacket);
-        } catch (Exception e) {
-            logger.error("", e);
-        }
-
-
+    protected void onExpired(long now) {
+        mManager.onExpired(this, now);
     }
 }
@@ -0,0 +1,156 @@
+package com.devsmart.kademlia;
+
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values with log-linear buckets in the style
+ * of HdrHistogram: each power of two is split into {@value #SUB_BUCKETS} linear
+ * sub-buckets, so any recorded value is reported within 12.5% of its true value.
+ * Recording is a few bit operations and one atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int NUM_BUCKETS = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    public static class Snapshot {
+        private final long mCount;
+        private final long mMean;
+        private final long mP50;
+        private final long mP90;
+        private final long mP99;
+        private final long mMax;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Snapshot(long count, long mean, long p50, long p90, long p99, long max) {
+            mCount = count;
+            mMean = mean;
+            mP50 = p50;
+            mP90 = p90;
+            mP99 = p99;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMean() {
+            return mMean;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP90() {
+            return mP90;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%d p50=%d p90=%d p99=%d max=%d", mCount, mMean, mP50, mP90, mP99, mMax);
+        }
+    }
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final AtomicLong mMax = new AtomicLong();
+
+    static int getBucket(long value) {
+        if(value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls in {@code bucket}
+     */
+    static long getBucketMax(int bucket) {
+        if(bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(getBucket(value));
+        mCount.increment();
+        mSum.add(value);
+
+        long max = mMax.get();
+        while(value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        final long count = mCount.sum();
+        return count == 0 ? 0 : mSum.sum() / count;
+    }
+
+    /**
+     * @param percentile in the range [0, 100]
+     * @return an upper bound on the value at {@code percentile}, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            total += mCounts.get(i);
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            seen += mCounts.get(i);
+            if(seen >= rank) {
+                return Math.min(getBucketMax(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public Snapshot getSnapshot() {
+        return new Snapshot(getCount(), getMean(),
+                getValueAtPercentile(50),
+                getValueAtPercentile(90),
+                getValueAtPercentile(99),
+                getMax());
+    }
+}
@@ -0,0 +1,251 @@
+package com.devsmart.kademlia;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * An iterative FIND_NODE lookup. A shortlist of candidates is kept ordered by XOR
+ * distance to the target and up to alpha FINDPEERS requests are kept in flight to the
+ * closest candidates not yet queried. A request that has not been answered within the
+ * node's adaptive timeout stops counting against alpha so the lookup moves on, though
+ * a late answer is still used. The lookup ends once the k closest live candidates have
+ * all answered.
+ *
+ * All state is confined to the node's event loop.
+ */
+class Lookup {
+
+    private static final Logger logger = LoggerFactory.getLogger(Lookup.class);
+
+    public static final int DEFAULT_ALPHA = 3;
+
+    private static final long INITIAL_SOFT_TIMEOUT = 500;
+    private static final long MIN_SOFT_TIMEOUT = 50;
+
+    private static final Predicate<Peer> NOT_DEAD = new Predicate<Peer>() {
+        @Override
+        public boolean test(Peer peer) {
+            return peer.getStatus() != Peer.Status.Dead;
+        }
+    };
+
+    private static final int NEW = 0;
+    private static final int IN_FLIGHT = 1;
+    private static final int SLOW = 2;
+    private static final int RESPONDED = 3;
+    private static final int FAILED = 4;
+
+    private class Candidate extends TimingWheel.Timeout {
+        final Peer mPeer;
+        int mState = NEW;
+        long mSentTime;
+
+        Candidate(Peer peer) {
+            mPeer = peer;
+        }
+
+        @Override
+        protected void onExpired(long now) {
+            if(mState == IN_FLIGHT) {
+                mState = SLOW;
+                mActive--;
+                advance();
+            }
+        }
+    }
+
+    private final Node mNode;
+    private final ID mTarget;
+    private final int mK;
+    private final int mAlpha;
+    private final Comparator<Candidate> mDistanceComparator;
+    private final ArrayList<Candidate> mShortlist = new ArrayList<Candidate>();
+    private final HashMap<ID, Candidate> mCandidates = new HashMap<ID, Candidate>();
+    private final Message.FindPeersMessage.PeerCursor mPeerCursor = new Message.FindPeersMessage.PeerCursor();
+    final CompletableFuture<List<Peer>> mFuture = new CompletableFuture<List<Peer>>();
+    private int mActive;
+    private int mNumQueries;
+
+    Lookup(Node node, ID target, int k, int alpha) {
+        mNode = node;
+        mTarget = target;
+        mK = k;
+        mAlpha = alpha;
+        final DistanceComparator distanceComparator = new DistanceComparator(target);
+        mDistanceComparator = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return distanceComparator.compare(a.mPeer, b.mPeer);
+            }
+        };
+    }
+
+    public ID getTarget() {
+        return mTarget;
+    }
+
+    void start() {
+        mNode.getRoutingTable().touchBucket(mTarget, mNode.currentTimeMillis());
+        addCandidates(mNode.getRoutingTable().getClosestPeers(mTarget, mK, NOT_DEAD));
+        advance();
+    }
+
+    private void addCandidates(Collection<Peer> peers) {
+        for(Peer p : peers) {
+            addCandidate(p);
+        }
+    }
+
+    private void addCandidate(Peer p) {
+        if(p.id.equals(mNode.getLocalId()) || mCandidates.containsKey(p.id)) {
+            return;
+        }
+
+        Candidate c = new Candidate(p);
+        mCandidates.put(p.id, c);
+        int i = Collections.binarySearch(mShortlist, c, mDistanceComparator);
+        mShortlist.add(i < 0 ? -i - 1 : i, c);
+    }
+
+    private void advance() {
+        if(mFuture.isDone()) {
+            return;
+        }
+
+        boolean waiting = false;
+        int responded = 0;
+        for(int i=0;i<mShortlist.size() && responded < mK;i++) {
+            Candidate c = mShortlist.get(i);
+            switch (c.mState) {
+                case RESPONDED:
+                    responded++;
+                    break;
+
+                case NEW:
+                    if(mActive < mAlpha) {
+                        query(getFastestEquallyClose(i));
+                        if(c.mState == NEW) {
+                            //a faster peer went first; look at this one again
+                            i--;
+                            continue;
+                        }
+                    }
+                    waiting = true;
+                    break;
+
+                case IN_FLIGHT:
+                case SLOW:
+                    //a slow query no longer counts against alpha but may still answer
+                    waiting = true;
+                    break;
+
+                //failed candidates do not hold up the result
+            }
+        }
+
+        if(!waiting) {
+            finish();
+        }
+    }
+
+    /**
+     * Peers the same number of bits away from the target are equally good routing
+     * choices, so among the new candidates that share as many prefix bits with the
+     * target as the one at {@code start}, pick the one with the lowest smoothed RTT.
+     * Peers without an RTT sample go after those with one.
+     */
+    private Candidate getFastestEquallyClose(int start) {
+        Candidate retval = mShortlist.get(start);
+        final int prefix = retval.mPeer.id.getNumSharedPrefixBits(mTarget);
+        long best = getSrtt(retval.mPeer);
+        for(int i=start+1;i<mShortlist.size();i++) {
+            Candidate c = mShortlist.get(i);
+            if(c.mPeer.id.getNumSharedPrefixBits(mTarget) != prefix) {
+                break;
+            }
+            if(c.mState == NEW) {
+                long srtt = getSrtt(c.mPeer);
+                if(srtt < best) {
+                    best = srtt;
+                    retval = c;
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static long getSrtt(Peer peer) {
+        final RttEstimator rtt = peer.getRtt();
+        return rtt.hasSample() ? rtt.getSrtt() : Long.MAX_VALUE;
+    }
+
+    private void query(final Candidate c) {
+        final long now = mNode.currentTimeMillis();
+        c.mState = IN_FLIGHT;
+        c.mSentTime = now;
+        mActive++;
+        mNumQueries++;
+
+        //a peer we have timed before gets its own timeout; others get the lookup-wide one
+        final RttEstimator rtt = c.mPeer.getRtt().hasSample() ? c.mPeer.getRtt() : mNode.getLookupRtt();
+        long softTimeout = rtt.getTimeout(INITIAL_SOFT_TIMEOUT, MIN_SOFT_TIMEOUT, Node.DEFAULT_REQUEST_TIMEOUT);
+        mNode.getTimer().schedule(c, now + softTimeout);
+
+        mNode.findPeers(mTarget, c.mPeer).whenComplete(new BiConsumer<Message, Throwable>() {
+            @Override
+            public void accept(Message response, Throwable error) {
+                onResult(c, response, error);
+            }
+        });
+    }
+
+    private void onResult(Candidate c, Message response, Throwable error) {
+        mNode.getTimer().cancel(c);
+        if(c.mState == IN_FLIGHT) {
+            mActive--;
+        }
+
+        if(error != null) {
+            c.mState = FAILED;
+        } else {
+            c.mState = RESPONDED;
+            mNode.getLookupRtt().update(mNode.currentTimeMillis() - c.mSentTime);
+            if(!mFuture.isDone()) {
+                //the node has already interned these peers, so this is normally an index hit
+                Message.FindPeersMessage.PeerCursor cursor = mPeerCursor.reset(response);
+                while(cursor.next()) {
+                    Peer p = mNode.getRoutingTable().getPeer(cursor);
+                    if(p != null) {
+                        addCandidate(p);
+                    }
+                }
+            }
+        }
+        advance();
+    }
+
+    private void finish() {
+        ArrayList<Peer> retval = new ArrayList<Peer>(mK);
+        for(int i=0;i<mShortlist.size();i++) {
+            Candidate c = mShortlist.get(i);
+            if(c.mState == RESPONDED && retval.size() < mK) {
+                retval.add(c.mPeer);
+            }
+            mNode.getTimer().cancel(c);
+        }
+
+        logger.debug("lookup for {} finished after {} queries", mTarget, mNumQueries);
+        mFuture.complete(Collections.unmodifiableList(retval));
+    }
+}
@@ -3,10 +3,11 @@ package com.devsmart.kademlia;
 
 import com.google.common.base.Throwables;
 
-import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -15,6 +16,15 @@ public class Message {
     public static final int PING = 0;
     public static final int FINDPEERS = 1;
     public static final int CONNECT = 2;
+    public static final int STORE = 3;
+    public static final int FIND_VALUE = 4;
+
+    public static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * Version 0 headers are the single header byte. Version 1 adds a request ID.
+     */
+    public static final int VERSION = 1;
 
     private static final int FLAG_RESPONSE = 0x10;
     /*
@@ -28,6 +38,16 @@ public class Message {
         +-+-+-+-+-+-+-+-+-
         |Ver|   |R| PT  |
 
+        Version 1 follows the header byte with a 4-byte request ID. A request
+        carries an ID chosen by the sender (0 if it does not expect a matched
+        response) and the response echoes it back. The payload starts after the
+        request ID. Version 0 messages have no request ID and the payload starts
+        right after the header byte.
+
+         0 1 2 3 4 5 6 7 8
+        +-+-+-+-+-+-+-+-+-+-------------------------------+
+        |Ver|   |R| PT  |   Request ID (32bit, v1 only)  |
+
 
         # SocketAddress #
           0   1   2   3   4   5
@@ -73,28 +93,82 @@ public class Message {
         ID: destId
         Yes/No, ID, SocketAddress[]
 
+        ### Store ###
+        PT: 3
+
+        Request Payload:
+        ID: key
+        TTL: 4-byte seconds the value should be kept
+        Length: 2-byte value length, at most 1024
+        Value: Length bytes
+
+        Response Payload:
+        ID: key
+        Yes/No: 1-byte, 1 if the value was stored
+
+        ### FindValue ###
+        PT: 4
+
+        Request Payload:
+        ID: key
+
+        Response Payload:
+        Yes/No: 1-byte, 1 if the value follows
+        Yes: Length (2-byte), Value
+        No: {ID, SocketAddress}[] closest to the key, as in FindPeers
+
         */
-    byte[] mRawData = new byte[64 * 1024];
-    public final DatagramPacket mPacket = new DatagramPacket(mRawData, mRawData.length);
+    private static final int SOCKET_ADDRESS_LENGTH = 6;
+    public static final int MAX_HEADER_LENGTH = 1 + 4;
+
+    final ByteBuffer mBuffer;
+    InetSocketAddress mRemoteAddress;
+    MessagePool mPool;
+    int mSizeClass;
 
-    private static int writeIPv4AddressPort(byte[] buf, int offset, InetAddress address, int port) {
+    public Message() {
+        this(ByteBuffer.allocate(MAX_SIZE));
+    }
+
+    public Message(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    private static int writeIPv4AddressPort(ByteBuffer buf, int offset, InetAddress address, int port) {
         byte[] addressBytes = address.getAddress();
-        System.arraycopy(addressBytes, 0, buf, offset, 4);
-        buf[offset + 4] = (byte) (0xFF & port);
-        buf[offset + 5] = (byte) (0xFF & (port >>> 8));
+        for(int i=0;i<4;i++) {
+            buf.put(offset + i, addressBytes[i]);
+        }
+        buf.put(offset + 4, (byte) (0xFF & port));
+        buf.put(offset + 5, (byte) (0xFF & (port >>> 8)));
 
         return 6;
     }
 
-    private static InetSocketAddress readIPv4AddressPort(byte[] buf, int offset) {
+    private static InetSocketAddress readIPv4AddressPort(ByteBuffer buf, int offset) {
+        return toSocketAddress(readIPv4(buf, offset), readPort(buf, offset + 4));
+    }
+
+    /**
+     * @return the IPv4 address at {@code offset} as a big-endian int, the same value
+     * as {@code Inet4Address.hashCode()}
+     */
+    private static int readIPv4(ByteBuffer buf, int offset) {
+        int retval = buf.getInt(offset);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? retval : Integer.reverseBytes(retval);
+    }
+
+    private static int readPort(ByteBuffer buf, int offset) {
+        return (buf.get(offset) & 0xFF) | ((buf.get(offset + 1) << 8) & 0xFF00);
+    }
+
+    static InetSocketAddress toSocketAddress(int ipv4, int port) {
         try {
             byte[] addressData = new byte[4];
-            System.arraycopy(buf, offset, addressData, 0, 4);
+            for(int i=0;i<4;i++) {
+                addressData[i] = (byte) (ipv4 >>> (24 - 8 * i));
+            }
             InetAddress address = InetAddress.getByAddress(addressData);
-
-            int port = buf[offset + 4] & 0xFF;
-            port |= ((buf[offset + 5] << 8) & 0xFF00);
-
             return new InetSocketAddress(address, port);
         } catch (UnknownHostException e) {
             Throwables.propagate(e);
@@ -102,165 +176,548 @@ public class Message {
         }
     }
 
+    /**
+     * Start formatting a message with a version 1 header and no request ID.
+     * @return the offset of the payload
+     */
+    private static int begin(Message msg, int header) {
+        msg.mBuffer.clear();
+        msg.mBuffer.put(0, (byte) ((VERSION << 6) | header));
+        msg.mBuffer.putInt(1, 0);
+        return MAX_HEADER_LENGTH;
+    }
+
+    private static void finish(Message msg, int length) {
+        msg.mBuffer.limit(length);
+        msg.mBuffer.position(0);
+    }
+
     public boolean parseData() {
         return false;
     }
 
     public int version() {
-        return mRawData[0] >>> 6;
+        return (0xFF & mBuffer.get(0)) >>> 6;
     }
 
     public int getType() {
-        return 0x7 & mRawData[0];
+        return 0x7 & mBuffer.get(0);
     }
 
     public boolean isResponse() {
-        return (FLAG_RESPONSE & mRawData[0]) > 0;
+        return (FLAG_RESPONSE & mBuffer.get(0)) > 0;
+    }
+
+    public int getHeaderLength() {
+        return version() >= 1 ? MAX_HEADER_LENGTH : 1;
+    }
+
+    /**
+     * @return the request ID, or 0 if the message does not carry one
+     */
+    public int getRequestId() {
+        return version() >= 1 ? mBuffer.getInt(1) : 0;
+    }
+
+    /**
+     * Set the request ID of a formatted version 1 message.
+     */
+    public void setRequestId(int requestId) {
+        if(version() < 1) {
+            throw new IllegalStateException("version " + version() + " messages have no request ID");
+        }
+        mBuffer.putInt(1, requestId);
+    }
+
+    /**
+     * Copy this message into a new heap buffer of exactly its length. Used to hand a
+     * message received into a shared buffer to code that may hold on to it.
+     */
+    public Message copy() {
+        ByteBuffer buffer = ByteBuffer.allocate(getLength());
+        for(int i=0;i<buffer.capacity();i++) {
+            buffer.put(i, mBuffer.get(i));
+        }
+        Message retval = new Message(buffer);
+        retval.mRemoteAddress = mRemoteAddress;
+        return retval;
+    }
+
+    /**
+     * Copy this message into {@code dst}, whose buffer must be large enough, with one
+     * bulk copy.
+     */
+    void copyTo(Message dst) {
+        dst.mBuffer.clear();
+        dst.mBuffer.put(mBuffer);
+        dst.mBuffer.flip();
+        mBuffer.position(0);
+    }
+
+    public int getLength() {
+        return mBuffer.limit();
     }
 
     public InetSocketAddress getRemoteSocketAddress() {
-        return (InetSocketAddress) mPacket.getSocketAddress();
+        return mRemoteAddress;
+    }
+
+    public void setRemoteSocketAddress(InetSocketAddress address) {
+        mRemoteAddress = address;
     }
 
     public void prepareReceive() {
-        mPacket.setData(mRawData);
+        mBuffer.clear();
+        mRemoteAddress = null;
     }
 
     public static class PingMessage {
 
+        public static final int MAX_LENGTH = MAX_HEADER_LENGTH + ID.NUM_BYTES + SOCKET_ADDRESS_LENGTH;
+
+        public static int getIdOffset(Message msg) {
+            return msg.getHeaderLength();
+        }
+
         public static ID getId(Message msg) {
-            return new ID(msg.mRawData, 1);
+            return ID.read(msg.mBuffer, getIdOffset(msg));
         }
 
         public static InetSocketAddress getSocketAddress(Message msg) {
-            return readIPv4AddressPort(msg.mRawData, 1 + ID.NUM_BYTES);
+            return readIPv4AddressPort(msg.mBuffer, msg.getHeaderLength() + ID.NUM_BYTES);
         }
 
         public static void formatRequest(Message msg, ID id) {
-            msg.mRawData[0] = PING;
-            int offset = 1;
-            offset += id.write(msg.mRawData, 1);
-            msg.mPacket.setData(msg.mRawData, 0, offset);
+            int offset = begin(msg, PING);
+            offset += id.write(msg.mBuffer, offset);
+            finish(msg, offset);
         }
 
         public static void formatResponse(Message msg, ID id, InetSocketAddress remoteAddress) {
-            msg.mRawData[0] = PING | FLAG_RESPONSE;
-
-            int offset = 1;
-            offset += id.write(msg.mRawData, offset);
-            offset += writeIPv4AddressPort(msg.mRawData, offset, remoteAddress.getAddress(), remoteAddress.getPort());
-            msg.mPacket.setData(msg.mRawData, 0, offset);
+            int offset = begin(msg, PING | FLAG_RESPONSE);
+            offset += id.write(msg.mBuffer, offset);
+            offset += writeIPv4AddressPort(msg.mBuffer, offset, remoteAddress.getAddress(), remoteAddress.getPort());
+            finish(msg, offset);
         }
     }
 
     public static class FindPeersMessage {
 
-        public static void formatRequest(Message msg, ID targetId) {
-            msg.mRawData[0] = FINDPEERS;
+        public static final int MAX_PEERS = 8;
+        public static final int REQUEST_LENGTH = MAX_HEADER_LENGTH + ID.NUM_BYTES;
+        public static final int MAX_RESPONSE_LENGTH = MAX_HEADER_LENGTH + 1 + MAX_PEERS * (ID.NUM_BYTES + SOCKET_ADDRESS_LENGTH);
 
-            int offset = 1;
-            offset += targetId.write(msg.mRawData, 1);
-            msg.mPacket.setData(msg.mRawData, 0, offset);
+        public static void formatRequest(Message msg, ID targetId) {
+            int offset = begin(msg, FINDPEERS);
+            offset += targetId.write(msg.mBuffer, offset);
+            finish(msg, offset);
         }
 
         public static void formatResponse(Message msg, Collection<Peer> peers) {
-            msg.mRawData[0] = FINDPEERS | FLAG_RESPONSE;
+            int offset = begin(msg, FINDPEERS | FLAG_RESPONSE);
+            offset += writePeers(msg.mBuffer, offset, peers);
+            finish(msg, offset);
+        }
 
-            int max = Math.min(8, peers.size());
-            msg.mRawData[1] = (byte) max;
+        static int writePeers(ByteBuffer buf, int start, Collection<Peer> peers) {
+            int offset = start;
+            int max = Math.min(MAX_PEERS, peers.size());
+            buf.put(offset, (byte) max);
+            offset += 1;
 
             int i = 0;
-
-            int offset = 2;
             for (Peer p : peers) {
-                offset += p.id.write(msg.mRawData, offset);
-                InetSocketAddress socketAddress = p.getInetSocketAddress();
-                offset += writeIPv4AddressPort(msg.mRawData, offset, socketAddress.getAddress(), socketAddress.getPort());
-
-                if (++i >= max) {
+                if (i++ >= max) {
                     break;
                 }
+                offset += p.id.write(buf, offset);
+                InetSocketAddress socketAddress = p.getInetSocketAddress();
+                offset += writeIPv4AddressPort(buf, offset, socketAddress.getAddress(), socketAddress.getPort());
             }
-            msg.mPacket.setData(msg.mRawData, 0, offset);
+            return offset - start;
         }
 
         public static ID getTargetId(Message msg) {
-            return new ID(msg.mRawData, 1);
+            return ID.read(msg.mBuffer, msg.getHeaderLength());
         }
 
         public static Collection<Peer> getPeers(Message msg) {
-            final int numPeers = 0x00ff & msg.mRawData[1];
-            ArrayList<Peer> retval = new ArrayList<Peer>(numPeers);
-
-            int offset = 2;
-            for (int i = 0; i < numPeers; i++) {
-                ID id = new ID(msg.mRawData, offset);
-                offset += ID.NUM_BYTES;
-                InetSocketAddress socketAddress = readIPv4AddressPort(msg.mRawData, offset);
-                offset += 6;
-                Peer p = new Peer(id, socketAddress);
-                retval.add(p);
+            PeerCursor cursor = new PeerCursor().reset(msg);
+            ArrayList<Peer> retval = new ArrayList<Peer>(cursor.size());
+            while(cursor.next()) {
+                retval.add(new Peer(cursor.getId(), cursor.getSocketAddress()));
             }
-
             return retval;
         }
+
+        /**
+         * A reusable cursor over the {ID, SocketAddress} entries of a FINDPEERS response.
+         * Each call to {@link #next()} decodes one entry into primitive fields, so walking
+         * a response does not allocate; {@link #getId()} and {@link #getSocketAddress()}
+         * create objects only for callers that need them. Entries that would run past the
+         * end of the message are not returned.
+         */
+        public static class PeerCursor {
+
+            private static final int ENTRY_LENGTH = ID.NUM_BYTES + SOCKET_ADDRESS_LENGTH;
+
+            private ByteBuffer mBuffer;
+            private int mOffset;
+            private int mEnd;
+            private int mSize;
+            private int mIdOffset;
+            private long mIdHigh;
+            private long mIdMid;
+            private int mIdLow;
+            private int mIPv4;
+            private int mPort;
+
+            public PeerCursor reset(Message msg) {
+                return reset(msg, msg.getHeaderLength());
+            }
+
+            /**
+             * Start at the entry count stored at {@code offset}, for messages that
+             * embed a FINDPEERS style peer list after other fields.
+             */
+            PeerCursor reset(Message msg, int offset) {
+                mBuffer = msg.mBuffer;
+                mEnd = msg.getLength();
+                mSize = offset < mEnd ? 0x00ff & mBuffer.get(offset) : 0;
+                mOffset = offset + 1;
+                return this;
+            }
+
+            /**
+             * @return the number of entries the response claims to hold
+             */
+            public int size() {
+                return mSize;
+            }
+
+            public boolean next() {
+                if(mSize <= 0 || mOffset + ENTRY_LENGTH > mEnd) {
+                    mSize = 0;
+                    return false;
+                }
+                mSize--;
+
+                mIdOffset = mOffset;
+                mIdHigh = ID.readHigh(mBuffer, mOffset);
+                mIdMid = ID.readMid(mBuffer, mOffset);
+                mIdLow = ID.readLow(mBuffer, mOffset);
+                mIPv4 = readIPv4(mBuffer, mOffset + ID.NUM_BYTES);
+                mPort = readPort(mBuffer, mOffset + ID.NUM_BYTES + 4);
+                mOffset += ENTRY_LENGTH;
+                return true;
+            }
+
+            /**
+             * @return the absolute index of the current entry's ID in the message buffer
+             */
+            public int getIdOffset() {
+                return mIdOffset;
+            }
+
+            long getIdHigh() {
+                return mIdHigh;
+            }
+
+            long getIdMid() {
+                return mIdMid;
+            }
+
+            int getIdLow() {
+                return mIdLow;
+            }
+
+            public int getIPv4() {
+                return mIPv4;
+            }
+
+            public int getPort() {
+                return mPort;
+            }
+
+            long getPackedAddress() {
+                return Peer.packAddress(mIPv4, mPort);
+            }
+
+            public ID getId() {
+                return new ID(mIdHigh, mIdMid, mIdLow);
+            }
+
+            public InetSocketAddress getSocketAddress() {
+                return toSocketAddress(mIPv4, mPort);
+            }
+        }
     }
 
     public static class ConnectMessage {
 
+        public static final int MAX_ADDRESSES = 4;
+        public static final int MAX_LENGTH = MAX_HEADER_LENGTH + 1 + 2 * ID.NUM_BYTES + 1 + MAX_ADDRESSES * SOCKET_ADDRESS_LENGTH;
+
         public static void formatRequest(Message msg, int tty, ID targetId, ID fromID, Collection<InetSocketAddress> addresses) {
-            msg.mRawData[0] = CONNECT;
-            int offset = 1;
+            int offset = begin(msg, CONNECT);
 
             //tty
-            msg.mRawData[offset] = (byte) tty;
+            msg.mBuffer.put(offset, (byte) tty);
             offset += 1;
 
-            offset += targetId.write(msg.mRawData, offset);
+            offset += targetId.write(msg.mBuffer, offset);
 
-            offset += fromID.write(msg.mRawData, offset);
+            offset += fromID.write(msg.mBuffer, offset);
 
-            final int max = Math.min(4, addresses.size());
-            msg.mRawData[offset] = (byte) max;
+            final int max = Math.min(MAX_ADDRESSES, addresses.size());
+            msg.mBuffer.put(offset, (byte) max);
             offset += 1;
             int i = 0;
             for (InetSocketAddress address : addresses) {
-                offset += writeIPv4AddressPort(msg.mRawData, offset, address.getAddress(), address.getPort());
-                if (++i >= max) {
+                if (i++ >= max) {
                     break;
                 }
+                offset += writeIPv4AddressPort(msg.mBuffer, offset, address.getAddress(), address.getPort());
             }
 
-            msg.mPacket.setData(msg.mRawData, 0, offset);
+            finish(msg, offset);
+        }
+
+        public static int getTTYOffset(Message msg) {
+            return msg.getHeaderLength();
+        }
+
+        public static int getTargetIdOffset(Message msg) {
+            return msg.getHeaderLength() + 1;
         }
 
         public static ID getTargetId(Message msg) {
-            return new ID(msg.mRawData, 2);
+            return ID.read(msg.mBuffer, getTargetIdOffset(msg));
         }
 
         public static ID getFromId(Message msg) {
-            int offset = 2 + ID.NUM_BYTES;
-            return new ID(msg.mRawData, offset);
+            int offset = getTargetIdOffset(msg) + ID.NUM_BYTES;
+            return ID.read(msg.mBuffer, offset);
         }
 
         public static int getTTY(Message msg) {
-            return msg.mRawData[1];
+            return msg.mBuffer.get(getTTYOffset(msg));
         }
 
         public static Collection<InetSocketAddress> getSocketAddresses(Message msg) {
-            ArrayList<InetSocketAddress> retval = new ArrayList<InetSocketAddress>(4);
-            int offset = 2 + 2 * ID.NUM_BYTES;
-            final int size = 0xff & msg.mRawData[offset];
+            ArrayList<InetSocketAddress> retval = new ArrayList<InetSocketAddress>(MAX_ADDRESSES);
+            AddressCursor cursor = new AddressCursor().reset(msg);
+            while(cursor.next()) {
+                retval.add(cursor.getSocketAddress());
+            }
+            return retval;
+        }
+
+        /**
+         * A reusable cursor over the from addresses of a CONNECT request that decodes
+         * each address into primitive fields without allocating.
+         */
+        public static class AddressCursor {
+
+            private ByteBuffer mBuffer;
+            private int mOffset;
+            private int mEnd;
+            private int mSize;
+            private int mIPv4;
+            private int mPort;
+
+            public AddressCursor reset(Message msg) {
+                final int offset = getTargetIdOffset(msg) + 2 * ID.NUM_BYTES;
+                mBuffer = msg.mBuffer;
+                mEnd = msg.getLength();
+                mSize = offset < mEnd ? 0xff & mBuffer.get(offset) : 0;
+                mOffset = offset + 1;
+                return this;
+            }
+
+            public int size() {
+                return mSize;
+            }
+
+            public boolean next() {
+                if(mSize <= 0 || mOffset + SOCKET_ADDRESS_LENGTH > mEnd) {
+                    mSize = 0;
+                    return false;
+                }
+                mSize--;
+
+                mIPv4 = readIPv4(mBuffer, mOffset);
+                mPort = readPort(mBuffer, mOffset + 4);
+                mOffset += SOCKET_ADDRESS_LENGTH;
+                return true;
+            }
+
+            public int getIPv4() {
+                return mIPv4;
+            }
+
+            public int getPort() {
+                return mPort;
+            }
+
+            long getPackedAddress() {
+                return Peer.packAddress(mIPv4, mPort);
+            }
+
+            public InetSocketAddress getSocketAddress() {
+                return toSocketAddress(mIPv4, mPort);
+            }
+        }
+
+
+    }
+    public static class StoreMessage {
+
+        public static final int MAX_VALUE_LENGTH = 1024;
+        public static final int MAX_LENGTH = MAX_HEADER_LENGTH + ID.NUM_BYTES + 4 + 2 + MAX_VALUE_LENGTH;
+        public static final int RESPONSE_LENGTH = MAX_HEADER_LENGTH + ID.NUM_BYTES + 1;
+
+        public static void formatRequest(Message msg, ID key, int ttlSeconds, byte[] value) {
+            if(value.length > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("value is " + value.length + " bytes, max is " + MAX_VALUE_LENGTH);
+            }
+            int offset = begin(msg, STORE);
+            offset += key.write(msg.mBuffer, offset);
+            msg.mBuffer.putInt(offset, ttlSeconds);
+            offset += 4;
+            msg.mBuffer.putShort(offset, (short) value.length);
+            offset += 2;
+            for(int i=0;i<value.length;i++) {
+                msg.mBuffer.put(offset + i, value[i]);
+            }
+            offset += value.length;
+            finish(msg, offset);
+        }
+
+        public static void formatResponse(Message msg, ID key, boolean stored) {
+            int offset = begin(msg, STORE | FLAG_RESPONSE);
+            offset += key.write(msg.mBuffer, offset);
+            msg.mBuffer.put(offset, (byte) (stored ? 1 : 0));
             offset += 1;
+            finish(msg, offset);
+        }
+
+        public static int getKeyOffset(Message msg) {
+            return msg.getHeaderLength();
+        }
+
+        public static ID getKey(Message msg) {
+            return ID.read(msg.mBuffer, getKeyOffset(msg));
+        }
+
+        public static int getTTL(Message msg) {
+            return msg.mBuffer.getInt(getKeyOffset(msg) + ID.NUM_BYTES);
+        }
+
+        /**
+         * @return the absolute index of the value in the message buffer
+         */
+        public static int getValueOffset(Message msg) {
+            return getKeyOffset(msg) + ID.NUM_BYTES + 4 + 2;
+        }
+
+        /**
+         * @return the value length, or -1 if the message is too short to hold it
+         */
+        public static int getValueLength(Message msg) {
+            final int length = 0xffff & msg.mBuffer.getShort(getKeyOffset(msg) + ID.NUM_BYTES + 4);
+            return getValueOffset(msg) + length <= msg.getLength() ? length : -1;
+        }
+
+        public static boolean isStored(Message msg) {
+            return msg.mBuffer.get(getKeyOffset(msg) + ID.NUM_BYTES) != 0;
+        }
+    }
+
+    public static class FindValueMessage {
+
+        public static final int REQUEST_LENGTH = MAX_HEADER_LENGTH + ID.NUM_BYTES;
+        public static final int MAX_RESPONSE_LENGTH = Math.max(
+                MAX_HEADER_LENGTH + 1 + 2 + StoreMessage.MAX_VALUE_LENGTH,
+                FindPeersMessage.MAX_RESPONSE_LENGTH + 1);
+
+        /**
+         * The absolute index at which {@link #formatValueResponse(Message, int)} expects
+         * the value to have been written.
+         */
+        static final int VALUE_RESPONSE_OFFSET = MAX_HEADER_LENGTH + 1 + 2;
 
-            for (int i = 0; i < size; i++) {
-                retval.add(readIPv4AddressPort(msg.mRawData, offset));
-                offset += 6;
+        public static void formatRequest(Message msg, ID key) {
+            int offset = begin(msg, FIND_VALUE);
+            offset += key.write(msg.mBuffer, offset);
+            finish(msg, offset);
+        }
+
+        public static ID getKey(Message msg) {
+            return ID.read(msg.mBuffer, getKeyOffset(msg));
+        }
+
+        public static int getKeyOffset(Message msg) {
+            return msg.getHeaderLength();
+        }
+
+        public static void formatValueResponse(Message msg, byte[] value) {
+            for(int i=0;i<value.length;i++) {
+                msg.mBuffer.put(VALUE_RESPONSE_OFFSET + i, value[i]);
             }
+            formatValueResponse(msg, value.length);
+        }
 
-            return retval;
+        /**
+         * Finish a response whose {@code length} byte value was already copied into the
+         * buffer at {@link #VALUE_RESPONSE_OFFSET}, so a stored value goes straight from
+         * the value store into the outbound message.
+         */
+        static void formatValueResponse(Message msg, int length) {
+            int offset = begin(msg, FIND_VALUE | FLAG_RESPONSE);
+            msg.mBuffer.put(offset, (byte) 1);
+            offset += 1;
+            msg.mBuffer.putShort(offset, (short) length);
+            offset += 2;
+            finish(msg, offset + length);
+        }
+
+        public static void formatPeersResponse(Message msg, Collection<Peer> peers) {
+            int offset = begin(msg, FIND_VALUE | FLAG_RESPONSE);
+            msg.mBuffer.put(offset, (byte) 0);
+            offset += 1;
+            offset += FindPeersMessage.writePeers(msg.mBuffer, offset, peers);
+            finish(msg, offset);
         }
 
+        public static boolean hasValue(Message msg) {
+            return msg.mBuffer.get(msg.getHeaderLength()) != 0;
+        }
+
+        /**
+         * @return a copy of the value, or null if the response holds peers instead or is truncated
+         */
+        public static byte[] getValue(Message msg) {
+            if(!hasValue(msg)) {
+                return null;
+            }
+            final int offset = msg.getHeaderLength() + 1;
+            final int length = 0xffff & msg.mBuffer.getShort(offset);
+            if(offset + 2 + length > msg.getLength()) {
+                return null;
+            }
+            byte[] retval = new byte[length];
+            for(int i=0;i<length;i++) {
+                retval[i] = msg.mBuffer.get(offset + 2 + i);
+            }
+            return retval;
+        }
 
+        /**
+         * Walk the peers of a response that has no value.
+         */
+        public static FindPeersMessage.PeerCursor getPeers(Message msg, FindPeersMessage.PeerCursor cursor) {
+            return cursor.reset(msg, msg.getHeaderLength() + 1);
+        }
     }
 }
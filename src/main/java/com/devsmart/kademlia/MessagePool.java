@@ -0,0 +1,135 @@
+package com.devsmart.kademlia;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recycles {@link Message} buffers so that heap use follows the number of messages
+ * in flight rather than the number of peers. Buffers are carved out of larger slabs
+ * in a few size classes that fit the real payloads; a message is acquired for the
+ * largest payload it will hold and released once it has been sent.
+ */
+public class MessagePool {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_FREE = 1024;
+
+    private final int[] mClassSizes;
+    private final SizeClass[] mClasses;
+    private final boolean mDirect;
+    private final int mMaxFree;
+
+    public MessagePool(boolean direct) {
+        this(direct, DEFAULT_MAX_FREE);
+    }
+
+    /**
+     * @param direct allocate slabs off-heap with {@link ByteBuffer#allocateDirect(int)}
+     * @param maxFree the maximum number of idle messages kept per size class
+     */
+    public MessagePool(boolean direct, int maxFree) {
+        mDirect = direct;
+        mMaxFree = maxFree;
+        mClassSizes = new int[] {
+                roundUp(Message.PingMessage.MAX_LENGTH),
+                roundUp(Message.ConnectMessage.MAX_LENGTH),
+                roundUp(Message.FindPeersMessage.MAX_RESPONSE_LENGTH),
+                roundUp(Message.StoreMessage.MAX_LENGTH),
+                Message.MAX_SIZE
+        };
+        mClasses = new SizeClass[mClassSizes.length];
+        for(int i=0;i<mClassSizes.length;i++) {
+            mClasses[i] = new SizeClass(i, mClassSizes[i]);
+        }
+    }
+
+    private static int roundUp(int size) {
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Get a message whose buffer can hold at least {@code size} bytes.
+     */
+    public Message acquire(int size) {
+        for(int i=0;i<mClassSizes.length;i++) {
+            if(size <= mClassSizes[i]) {
+                Message retval = mClasses[i].acquire();
+                retval.mBuffer.clear();
+                retval.mRemoteAddress = null;
+                return retval;
+            }
+        }
+        throw new IllegalArgumentException("message size too large: " + size);
+    }
+
+    /**
+     * Return a message to the pool. Messages that did not come from this pool are ignored.
+     */
+    public void release(Message msg) {
+        if(msg.mPool == this) {
+            msg.mRemoteAddress = null;
+            mClasses[msg.mSizeClass].release(msg);
+        }
+    }
+
+    public int getFreeCount() {
+        int retval = 0;
+        for(SizeClass sizeClass : mClasses) {
+            synchronized (sizeClass) {
+                retval += sizeClass.mNumFree;
+            }
+        }
+        return retval;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private class SizeClass {
+
+        final int mSize;
+        final int mIndex;
+        final int mSlabCount;
+        final Message[] mFree;
+        int mNumFree;
+
+        SizeClass(int index, int size) {
+            mIndex = index;
+            mSize = size;
+            mSlabCount = Math.max(1, SLAB_SIZE / size);
+            mFree = new Message[Math.max(mMaxFree, mSlabCount)];
+        }
+
+        synchronized Message acquire() {
+            if(mNumFree == 0) {
+                refill();
+            }
+            Message retval = mFree[--mNumFree];
+            mFree[mNumFree] = null;
+            return retval;
+        }
+
+        synchronized void release(Message msg) {
+            if(mNumFree < mFree.length) {
+                mFree[mNumFree++] = msg;
+            }
+        }
+
+        private void refill() {
+            ByteBuffer slab = allocate(mSize * mSlabCount);
+            for(int i=0;i<mSlabCount;i++) {
+                slab.limit((i + 1) * mSize);
+                slab.position(i * mSize);
+                Message msg = new Message(slab.slice());
+                msg.mPool = MessagePool.this;
+                msg.mSizeClass = mIndex;
+                mFree[mNumFree++] = msg;
+            }
+        }
+    }
+}
@@ -1,24 +1,980 @@
 package com.devsmart.kademlia;
 
 
-import java.net.DatagramSocket;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A Kademlia node. All of the node's work happens on the single event loop of its
+ * {@link Transport}: inbound datagrams are decoded in place and dispatched by payload
+ * type, and timers, such as keep-alives, run on a timing wheel ticked by the same loop.
+ * Outbound messages from any thread are handed to the transport to be written.
+ * Inbound handling only touches thread-safe state (the routing table, pending requests
+ * and metrics), so a sharded transport may dispatch datagrams from several threads;
+ * request futures and lookups still only run on the event loop.
+ */
 public class Node {
 
+    public interface BootstrapListener {
+
+        /**
+         * Called on the event loop each time a bootstrap step finishes.
+         * @param numPeers the number of peers in the routing table
+         * @param numBuckets the number of non-empty buckets
+         */
+        void onProgress(int numPeers, int numBuckets);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Node.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 512;
+    public static final long DEFAULT_REQUEST_TIMEOUT = 2000;
+    public static final int MAX_TTL_SECONDS = 24 * 60 * 60;
+    private static final long VALUE_PURGE_INTERVAL = 60 * 1000;
+    static final int MAX_CONNECT_HOPS = 32;
+    private static final long SNAPSHOT_SHUTDOWN_TIMEOUT = 10 * 1000;
+    public static final long DEFAULT_LOOKUP_CACHE_TTL = 10 * 1000;
+    public static final int DEFAULT_LOOKUP_CACHE_SIZE = 1024;
+
+    private static final Predicate<Peer> REACHABLE = new Predicate<Peer>() {
+        @Override
+        public boolean test(Peer peer) {
+            final Peer.Status status = peer.getStatus();
+            return status == Peer.Status.Alive || status == Peer.Status.Dying;
+        }
+    };
+
     private final ID mLocalId;
-    private final DatagramSocket mSocket;
+    private final Transport mTransport;
+    private final RoutingTable mRoutingTable;
+    private final Clock mClock;
+    private final Clock mSourceClock;
+    private final NodeMetrics mMetrics;
+    private final PendingRequests mPendingRequests;
+    private final RttEstimator mLookupRtt = new RttEstimator();
+    private final ValueStore mValueStore;
+    private volatile Cache<ID, CompletableFuture<List<Peer>>> mLookupCache;
+    private volatile AdmissionControl mAdmissionControl;
+    private final ThreadLocal<Message.FindPeersMessage.PeerCursor> mPeerCursor = new ThreadLocal<Message.FindPeersMessage.PeerCursor>() {
+        @Override
+        protected Message.FindPeersMessage.PeerCursor initialValue() {
+            return new Message.FindPeersMessage.PeerCursor();
+        }
+    };
+
+    private final Executor mLoopExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            Node.this.execute(task);
+        }
+    };
+
+    private TimingWheel mTimer;
+    private KeepAliveManager mKeepAliveManager;
+    private BucketRefresher mBucketRefresher;
+    private long mRefreshInterval = BucketRefresher.DEFAULT_REFRESH_INTERVAL;
+    private final TimingWheel.Timeout mValuePurge = new TimingWheel.Timeout() {
+        @Override
+        protected void onExpired(long now) {
+            int purged = mValueStore.purgeExpired(now);
+            if(purged > 0) {
+                logger.debug("purged {} expired values", purged);
+            }
+            mTimer.schedule(this, now + VALUE_PURGE_INTERVAL);
+        }
+    };
+    private boolean mRunning;
+    private ObjectName mObjectName;
+    private Path mSnapshotFile;
+    private long mSnapshotInterval;
+    private ScheduledExecutorService mSnapshotExecutor;
+    private final Object mSnapshotLock = new Object();
+
+    private final Transport.Receiver mReceiver = new Transport.Receiver() {
+        @Override
+        public void onReceive(Message msg) {
+            try {
+                if(!admit(msg)) {
+                    mMetrics.onShed();
+                    return;
+                }
+                dispatch(msg);
+            } catch (RuntimeException e) {
+                mMetrics.onDecodeError();
+                logger.debug("dropping malformed message from {}", msg.getRemoteSocketAddress(), e);
+            }
+        }
+
+        @Override
+        public long onTick(long now) {
+            mKeepAliveManager.onTick(now);
+            return mTimer.getTimeToNextTick(now);
+        }
+    };
+
+    private final RoutingTable.Listener mRoutingTableListener = new RoutingTable.Listener() {
+        @Override
+        public void onPeerAdded(final Peer peer) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(mRoutingTable.contains(peer)) {
+                        mKeepAliveManager.add(peer, currentTimeMillis());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPeerRemoved(final Peer peer) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mKeepAliveManager.remove(peer);
+                }
+            });
+        }
+
+        @Override
+        public void onProbe(Peer peer) {
+            ping(peer);
+        }
+    };
+
+    public Node(ID localId, InetSocketAddress bindAddress) {
+        this(localId, new UdpTransport(bindAddress));
+    }
+
+    public Node(ID localId, InetSocketAddress bindAddress, MessagePool messagePool) {
+        this(localId, new UdpTransport(bindAddress, messagePool));
+    }
+
+    public Node(ID localId, InetSocketAddress bindAddress, MessagePool messagePool, Clock clock) {
+        this(localId, new UdpTransport(bindAddress, messagePool, clock));
+    }
+
+    public Node(ID localId, Transport transport) {
+        this(localId, transport, new ValueStore());
+    }
 
-    public Node(ID localId, DatagramSocket socket) {
+    public Node(ID localId, Transport transport, ValueStore valueStore) {
         mLocalId = localId;
-        mSocket = socket;
+        mValueStore = valueStore;
+        mTransport = transport;
+        mClock = transport.getClock();
+        mSourceClock = mClock instanceof CachedClock ? ((CachedClock) mClock).getSource() : mClock;
+        mRoutingTable = new RoutingTable(localId, RoutingTable.DEFAULT_K, mClock);
+        mRoutingTable.setListener(mRoutingTableListener);
+        mMetrics = new NodeMetrics(this);
+        mPendingRequests = new PendingRequests(mMetrics);
+        setLookupCache(DEFAULT_LOOKUP_CACHE_TTL, DEFAULT_LOOKUP_CACHE_SIZE);
+        if(transport.isExposed()) {
+            mAdmissionControl = new AdmissionControl();
+        }
+    }
+
+    public ID getLocalId() {
+        return mLocalId;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return mRoutingTable;
+    }
+
+    public MessagePool getMessagePool() {
+        return mTransport.getMessagePool();
+    }
+
+    TimingWheel getTimer() {
+        return mTimer;
+    }
+
+    RttEstimator getLookupRtt() {
+        return mLookupRtt;
+    }
+
+    public ValueStore getValueStore() {
+        return mValueStore;
+    }
+
+    /**
+     * Replace the limits on inbound requests, or remove them with null. Nodes on a
+     * {@link UdpTransport} start with the default {@link AdmissionControl}; others
+     * start without any.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        mAdmissionControl = admissionControl;
+    }
+
+    public NodeMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    int getNumPendingRequests() {
+        return mPendingRequests.size();
+    }
+
+    /**
+     * Register this node's {@link NodeMXBean} with the platform MBean server. It is
+     * unregistered when the node shuts down.
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+        if(mObjectName == null) {
+            ObjectName name = new ObjectName("com.devsmart.kademlia:type=Node,id=" + mLocalId.toString(BaseEncoding.base16()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mMetrics, name);
+            mObjectName = name;
+        }
+        return mObjectName;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return mTransport.getLocalAddress();
+    }
+
+    public synchronized void start() throws IOException {
+        if(mRunning) {
+            return;
+        }
+
+        mTimer = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, mClock.currentTimeMillis());
+        mKeepAliveManager = new KeepAliveManager(this, mTimer);
+        mTimer.schedule(mValuePurge, mClock.currentTimeMillis() + VALUE_PURGE_INTERVAL);
+        if(mRefreshInterval > 0) {
+            mBucketRefresher = new BucketRefresher(this, mTimer, mRefreshInterval);
+            mBucketRefresher.start(mClock.currentTimeMillis());
+        }
+        mTransport.start(mReceiver);
+        mRunning = true;
+
+        if(mSnapshotFile != null) {
+            loadSnapshot();
+            mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("Kademlia snapshot " + mLocalId.toString().substring(0, 6))
+                    .setDaemon(true)
+                    .build());
+            mSnapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeSnapshot();
+                    } catch (IOException e) {
+                        logger.warn("error writing routing table snapshot {}", mSnapshotFile, e);
+                    }
+                }
+            }, mSnapshotInterval, mSnapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Persist the routing table to {@code file} every {@code intervalMillis} and on
+     * shutdown, and reload it when the node starts. Must be called before {@link #start()}.
+     * Snapshots are written on a background thread, never the event loop.
+     */
+    public synchronized void setSnapshotFile(Path file, long intervalMillis) {
+        if(mRunning) {
+            throw new IllegalStateException("node already started");
+        }
+        mSnapshotFile = file;
+        mSnapshotInterval = intervalMillis;
+    }
+
+    /**
+     * Refresh buckets that no lookup has gone into for {@code intervalMillis}, or never
+     * if 0. Must be called before {@link #start()}.
+     */
+    public synchronized void setBucketRefreshInterval(long intervalMillis) {
+        if(mRunning) {
+            throw new IllegalStateException("node already started");
+        }
+        mRefreshInterval = intervalMillis;
+    }
+
+    /**
+     * @return the number of bucket refresh lookups started
+     */
+    public int getNumBucketRefreshes() {
+        return mBucketRefresher != null ? mBucketRefresher.getNumRefreshes() : 0;
+    }
+
+    /**
+     * Write the routing table to the snapshot file now.
+     * @return the number of peers written, or 0 if no snapshot file is set
+     */
+    public int writeSnapshot() throws IOException {
+        final Path file = mSnapshotFile;
+        if(file == null) {
+            return 0;
+        }
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        mRoutingTable.getAllPeers(peers);
+        //writes share one temporary file
+        synchronized (mSnapshotLock) {
+            return RoutingTableSnapshot.write(file, peers, mClock);
+        }
+    }
+
+    /**
+     * Add the peers from the snapshot file to the routing table and probe them right away,
+     * so routes are usable as soon as they answer.
+     */
+    private void loadSnapshot() {
+        if(!Files.exists(mSnapshotFile)) {
+            return;
+        }
+        try {
+            List<RoutingTableSnapshot.Entry> entries = RoutingTableSnapshot.read(mSnapshotFile);
+            for(RoutingTableSnapshot.Entry entry : entries) {
+                if(entry.id.equals(mLocalId)) {
+                    continue;
+                }
+                Peer peer = mRoutingTable.getPeer(entry.id, entry.socketAddress);
+                if(entry.srtt >= 0 && !peer.getRtt().hasSample()) {
+                    peer.getRtt().update(entry.srtt);
+                }
+                ping(peer);
+            }
+            logger.info("restored {} peers from {}", entries.size(), mSnapshotFile);
+        } catch (IOException e) {
+            logger.warn("error reading routing table snapshot {}", mSnapshotFile, e);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if(!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        if(mSnapshotExecutor != null) {
+            //let a periodic write in progress finish; it uses the same temporary file
+            mSnapshotExecutor.shutdown();
+            try {
+                if(!mSnapshotExecutor.awaitTermination(SNAPSHOT_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.warn("timed out waiting for routing table snapshot {}", mSnapshotFile);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSnapshotExecutor = null;
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                logger.warn("error writing routing table snapshot {}", mSnapshotFile, e);
+            }
+        }
+        mTransport.shutdown();
+        mPendingRequests.failAll(new IOException("node shut down"));
+
+        if(mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+            } catch (JMException e) {
+                logger.warn("error unregistering {}", mObjectName, e);
+            }
+            mObjectName = null;
+        }
+    }
+
+    /**
+     * Queue a message to be sent by the event loop. The message must already have
+     * its remote address set. Ownership of the message passes to the node; the caller
+     * must not modify it afterwards. Messages acquired from {@link #getMessagePool()}
+     * are released back to the pool once written.
+     */
+    public void send(Message msg) {
+        send(msg, Transport.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queue a message with the given priority. Low priority messages are the first to be
+     * dropped when the transport's send queue backs up.
+     */
+    public void send(Message msg, int priority) {
+        //the transport owns the message once it is queued, so read the header first
+        final int type = msg.getType();
+        final boolean response = msg.isResponse();
+        if(mTransport.send(msg, priority)) {
+            mMetrics.onSent(type, response);
+        }
+    }
+
+    /**
+     * Run {@code task} on the event loop.
+     */
+    public void execute(Runnable task) {
+        mTransport.execute(task);
+    }
+
+    long currentTimeMillis() {
+        return mClock.currentTimeMillis();
+    }
+
+    /**
+     * The time for work started off the event loop. The cached clock is only updated by
+     * the loop and can be a whole iteration behind, or more while the loop is idle.
+     */
+    private long callerTimeMillis() {
+        return mTransport.inEventLoop() ? mClock.currentTimeMillis() : mSourceClock.currentTimeMillis();
+    }
+
+    public void sendPing(InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.PingMessage.MAX_LENGTH);
+        Message.PingMessage.formatRequest(msg, mLocalId);
+        msg.setRemoteSocketAddress(address);
+        send(msg);
     }
 
-    public void start() {
+    /**
+     * Send a request and track its response. The message is given a fresh request ID and
+     * ownership passes to the node as with {@link #send(Message)}. The returned future
+     * completes with a copy of the response, or exceptionally with a
+     * {@link java.util.concurrent.TimeoutException} if none arrives within
+     * {@code timeoutMillis}. Futures are completed on the event loop thread, so
+     * dependent actions must not block.
+     */
+    public CompletableFuture<Message> sendRequest(Message msg, long timeoutMillis) {
+        return sendRequest(msg, null, timeoutMillis);
+    }
+
+    CompletableFuture<Message> sendRequest(Message msg, Peer peer, long timeoutMillis) {
+        return sendRequest(msg, peer, timeoutMillis, Transport.PRIORITY_NORMAL);
+    }
+
+    CompletableFuture<Message> sendRequest(Message msg, Peer peer, long timeoutMillis, int priority) {
+        final PendingRequests.Request request = mPendingRequests.register(msg, peer, callerTimeMillis());
+        final long deadline = request.mSentTime + timeoutMillis;
+        if(mTransport.inEventLoop()) {
+            mTimer.schedule(request, deadline);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTimer.schedule(request, deadline);
+                }
+            });
+        }
+        send(msg, priority);
+        return request.mFuture;
+    }
+
+    public CompletableFuture<Message> ping(InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.PingMessage.MAX_LENGTH);
+        Message.PingMessage.formatRequest(msg, mLocalId);
+        msg.setRemoteSocketAddress(address);
+        return sendRequest(msg, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public CompletableFuture<Message> findPeers(ID target, InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.FindPeersMessage.REQUEST_LENGTH);
+        Message.FindPeersMessage.formatRequest(msg, target);
+        msg.setRemoteSocketAddress(address);
+        return sendRequest(msg, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Ask {@code peer} for the peers closest to {@code target}, timing the round trip
+     * into the peer's RTT estimate.
+     */
+    CompletableFuture<Message> findPeers(ID target, Peer peer) {
+        Message msg = getMessagePool().acquire(Message.FindPeersMessage.REQUEST_LENGTH);
+        Message.FindPeersMessage.formatRequest(msg, target);
+        msg.setRemoteSocketAddress(peer.getInetSocketAddress());
+        return sendRequest(msg, peer, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Ping {@code peer}, timing the round trip into the peer's RTT estimate.
+     */
+    CompletableFuture<Message> ping(Peer peer) {
+        return ping(peer, Transport.PRIORITY_NORMAL);
+    }
+
+    CompletableFuture<Message> ping(Peer peer, int priority) {
+        Message msg = getMessagePool().acquire(Message.PingMessage.MAX_LENGTH);
+        Message.PingMessage.formatRequest(msg, mLocalId);
+        msg.setRemoteSocketAddress(peer.getInetSocketAddress());
+        return sendRequest(msg, peer, DEFAULT_REQUEST_TIMEOUT, priority);
+    }
+
+    /**
+     * Cache the results of {@link #lookup(ID)} for {@code ttlMillis}, keeping at most
+     * {@code maxSize} targets. A size of 0 disables the cache. Replaces the current
+     * cache and its contents.
+     */
+    public void setLookupCache(long ttlMillis, int maxSize) {
+        if(maxSize <= 0) {
+            mLookupCache = null;
+            return;
+        }
+        mLookupCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maxSize)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return TimeUnit.MILLISECONDS.toNanos(mClock.currentTimeMillis());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the lookup cache's statistics, or null if the cache is disabled
+     */
+    public CacheStats getLookupCacheStats() {
+        final Cache<ID, CompletableFuture<List<Peer>>> cache = mLookupCache;
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Find the peers closest to {@code target} with an iterative lookup. Results are
+     * cached for a while and concurrent lookups for the same target share one search.
+     * A cached result is dropped as soon as one of its peers is Dead, and failed or
+     * empty results are never kept.
+     * @return a future that completes with up to k peers that answered, closest first
+     */
+    public CompletableFuture<List<Peer>> lookup(final ID target) {
+        final Cache<ID, CompletableFuture<List<Peer>>> cache = mLookupCache;
+        if(cache == null) {
+            return lookup(target, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA);
+        }
+
+        CompletableFuture<List<Peer>> retval = cache.getIfPresent(target);
+        if(retval != null && !isUsable(retval)) {
+            cache.asMap().remove(target, retval);
+        }
+
+        try {
+            retval = cache.get(target, new Callable<CompletableFuture<List<Peer>>>() {
+                @Override
+                public CompletableFuture<List<Peer>> call() throws Exception {
+                    final CompletableFuture<List<Peer>> lookup = lookup(target, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA);
+                    lookup.whenComplete(new BiConsumer<List<Peer>, Throwable>() {
+                        @Override
+                        public void accept(List<Peer> peers, Throwable error) {
+                            if(!isUsable(lookup)) {
+                                cache.asMap().remove(target, lookup);
+                            }
+                        }
+                    });
+                    return lookup;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+
+        //callers get their own future so one cannot complete or cancel the cached one
+        return retval.thenApply(new Function<List<Peer>, List<Peer>>() {
+            @Override
+            public List<Peer> apply(List<Peer> peers) {
+                return peers;
+            }
+        });
+    }
+
+    private static boolean isUsable(CompletableFuture<List<Peer>> lookup) {
+        if(!lookup.isDone()) {
+            return true;
+        }
+        if(lookup.isCompletedExceptionally()) {
+            return false;
+        }
+        List<Peer> peers = lookup.join();
+        if(peers.isEmpty()) {
+            return false;
+        }
+        for(int i=0;i<peers.size();i++) {
+            if(peers.get(i).getStatus() == Peer.Status.Dead) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Join the network through {@code seeds}; see {@link #bootstrap(Collection, BootstrapListener)}.
+     */
+    public CompletableFuture<Integer> bootstrap(Collection<InetSocketAddress> seeds) {
+        return bootstrap(seeds, null);
+    }
+
+    /**
+     * Join the network: ping every seed at once, look up our own ID, then look up a
+     * random ID in every empty bucket farther out than the closest non-empty one, all
+     * at once.
+     * @param listener told the size of the routing table as it fills, or null
+     * @return a future that completes with the number of peers in the routing table,
+     * or exceptionally if no seed answered
+     */
+    public CompletableFuture<Integer> bootstrap(Collection<InetSocketAddress> seeds, BootstrapListener listener) {
+        final Bootstrap bootstrap = new Bootstrap(this, seeds, listener);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                bootstrap.start();
+            }
+        });
+        return bootstrap.mFuture;
+    }
+
+    public CompletableFuture<List<Peer>> lookup(ID target, int k, int alpha) {
+        final Lookup lookup = new Lookup(this, target, k, alpha);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                lookup.start();
+            }
+        });
+        return lookup.mFuture;
+    }
+
+    public CompletableFuture<Message> store(ID key, byte[] value, int ttlSeconds, InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.StoreMessage.MAX_LENGTH);
+        Message.StoreMessage.formatRequest(msg, key, ttlSeconds, value);
+        msg.setRemoteSocketAddress(address);
+        return sendRequest(msg, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    CompletableFuture<Message> store(ID key, byte[] value, int ttlSeconds, Peer peer) {
+        Message msg = getMessagePool().acquire(Message.StoreMessage.MAX_LENGTH);
+        Message.StoreMessage.formatRequest(msg, key, ttlSeconds, value);
+        msg.setRemoteSocketAddress(peer.getInetSocketAddress());
+        return sendRequest(msg, peer, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public CompletableFuture<Message> findValue(ID key, InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.FindValueMessage.REQUEST_LENGTH);
+        Message.FindValueMessage.formatRequest(msg, key);
+        msg.setRemoteSocketAddress(address);
+        return sendRequest(msg, DEFAULT_REQUEST_TIMEOUT);
+    }
 
+    CompletableFuture<Message> findValue(ID key, Peer peer) {
+        Message msg = getMessagePool().acquire(Message.FindValueMessage.REQUEST_LENGTH);
+        Message.FindValueMessage.formatRequest(msg, key);
+        msg.setRemoteSocketAddress(peer.getInetSocketAddress());
+        return sendRequest(msg, peer, DEFAULT_REQUEST_TIMEOUT);
     }
 
-    public void shutdown() {
-        
+    /**
+     * Store {@code value} on the k peers closest to {@code key}.
+     * @return a future that completes with the number of peers that stored the value
+     * @throws IllegalArgumentException if {@code value} is longer than {@link ValueStore#MAX_VALUE_LENGTH}
+     */
+    public CompletableFuture<Integer> put(final ID key, final byte[] value, final int ttlSeconds) {
+        if(value.length > ValueStore.MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("value is " + value.length + " bytes, max is " + ValueStore.MAX_VALUE_LENGTH);
+        }
+        return lookup(key).thenCompose(new Function<List<Peer>, CompletableFuture<Integer>>() {
+            @Override
+            public CompletableFuture<Integer> apply(List<Peer> peers) {
+                final CompletableFuture<Integer> retval = new CompletableFuture<Integer>();
+                if(peers.isEmpty()) {
+                    retval.complete(0);
+                    return retval;
+                }
+
+                final AtomicInteger remaining = new AtomicInteger(peers.size());
+                final AtomicInteger stored = new AtomicInteger();
+                for(Peer p : peers) {
+                    store(key, value, ttlSeconds, p).whenComplete(new BiConsumer<Message, Throwable>() {
+                        @Override
+                        public void accept(Message response, Throwable error) {
+                            if(error == null && Message.StoreMessage.isStored(response)) {
+                                stored.incrementAndGet();
+                            }
+                            if(remaining.decrementAndGet() == 0) {
+                                retval.complete(stored.get());
+                            }
+                        }
+                    });
+                }
+                return retval;
+            }
+        });
+    }
+
+    /**
+     * Get the value stored under {@code key}, from the local value store if it is there,
+     * else from the first of the k peers closest to {@code key} that has it.
+     * @return a future that completes with the value, or null if no peer has it
+     */
+    public CompletableFuture<byte[]> get(final ID key) {
+        byte[] local = mValueStore.get(key, currentTimeMillis());
+        if(local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+
+        return lookup(key).thenCompose(new Function<List<Peer>, CompletableFuture<byte[]>>() {
+            @Override
+            public CompletableFuture<byte[]> apply(List<Peer> peers) {
+                final CompletableFuture<byte[]> retval = new CompletableFuture<byte[]>();
+                if(peers.isEmpty()) {
+                    retval.complete(null);
+                    return retval;
+                }
+
+                final AtomicInteger remaining = new AtomicInteger(peers.size());
+                for(Peer p : peers) {
+                    findValue(key, p).whenComplete(new BiConsumer<Message, Throwable>() {
+                        @Override
+                        public void accept(Message response, Throwable error) {
+                            byte[] value = error == null ? Message.FindValueMessage.getValue(response) : null;
+                            if(value != null) {
+                                retval.complete(value);
+                            } else if(remaining.decrementAndGet() == 0) {
+                                retval.complete(null);
+                            }
+                        }
+                    });
+                }
+                return retval;
+            }
+        });
+    }
+
+    /**
+     * Send a CONNECT request toward {@code target}. Each node on the way forwards it to a
+     * peer closer to the target until it reaches the target node.
+     * @param addresses the addresses the target can reach this node on
+     * @return false if no known peer is closer to the target than this node
+     */
+    public boolean sendConnect(ID target, Collection<InetSocketAddress> addresses) {
+        Peer next = mRoutingTable.getNextHop(target.getHigh(), target.getMid(), target.getLow(), currentTimeMillis());
+        if(next == null) {
+            return false;
+        }
+        Message msg = getMessagePool().acquire(Message.ConnectMessage.MAX_LENGTH);
+        Message.ConnectMessage.formatRequest(msg, 0, target, mLocalId, addresses);
+        msg.setRemoteSocketAddress(next.getInetSocketAddress());
+        send(msg);
+        return true;
+    }
+
+    public void sendFindPeers(ID target, InetSocketAddress address) {
+        Message msg = getMessagePool().acquire(Message.FindPeersMessage.REQUEST_LENGTH);
+        Message.FindPeersMessage.formatRequest(msg, target);
+        msg.setRemoteSocketAddress(address);
+        send(msg);
+    }
+
+    /**
+     * Responses to our own requests are always handled. Requests, and responses we are
+     * not waiting for, go through admission control first; unsolicited responses may
+     * well be spoofed. Requests that make us walk the routing table or the value store
+     * cost twice as much as a PING or a relayed CONNECT.
+     */
+    private boolean admit(Message msg) {
+        final AdmissionControl admissionControl = mAdmissionControl;
+        if(admissionControl == null || (msg.isResponse() && mPendingRequests.isPending(msg))) {
+            return true;
+        }
+        final int type = msg.getType();
+        final int cost = type == Message.PING || type == Message.CONNECT ? 1 : 2;
+        return admissionControl.admit(msg.getRemoteSocketAddress().getAddress().hashCode(), cost,
+                currentTimeMillis(), mTransport.getFullestSendQueueDepth());
+    }
+
+    private void dispatch(Message msg) {
+        mMetrics.onReceived(msg);
+        switch (msg.getType()) {
+            case Message.PING:
+                handlePing(msg);
+                break;
+
+            case Message.FINDPEERS:
+                handleFindPeers(msg);
+                break;
+
+            case Message.CONNECT:
+                handleConnect(msg);
+                break;
+
+            case Message.STORE:
+                handleStore(msg);
+                break;
+
+            case Message.FIND_VALUE:
+                handleFindValue(msg);
+                break;
+
+            default:
+                mMetrics.onDropped();
+                logger.debug("unknown message type {} from {}", msg.getType(), msg.getRemoteSocketAddress());
+                return;
+        }
+
+        //after the handler so whoever waits on the response sees the peers it taught us
+        if(msg.isResponse()) {
+            //futures complete on the event loop even when a receive shard got the response
+            mPendingRequests.complete(msg, currentTimeMillis(), mTransport.inEventLoop() ? null : mLoopExecutor);
+        }
+    }
+
+    private void handlePing(Message msg) {
+        final InetSocketAddress remoteAddress = msg.getRemoteSocketAddress();
+        Peer peer = mRoutingTable.findPeer(msg.mBuffer, Message.PingMessage.getIdOffset(msg), Peer.packAddress(remoteAddress));
+        if(peer == null) {
+            final ID remoteId = Message.PingMessage.getId(msg);
+            if(!remoteId.equals(mLocalId)) {
+                peer = mRoutingTable.getPeer(remoteId, remoteAddress);
+            }
+        }
+        if(peer != null) {
+            peer.markSeen();
+        }
+
+        if(!msg.isResponse()) {
+            Message response = getMessagePool().acquire(Message.PingMessage.MAX_LENGTH);
+            Message.PingMessage.formatResponse(response, mLocalId, remoteAddress);
+            response.setRequestId(msg.getRequestId());
+            response.setRemoteSocketAddress(remoteAddress);
+            send(response);
+        }
+    }
+
+    private void handleFindPeers(Message msg) {
+        if(msg.isResponse()) {
+            Message.FindPeersMessage.PeerCursor cursor = mPeerCursor.get().reset(msg);
+            while(cursor.next()) {
+                mRoutingTable.getPeer(cursor);
+            }
+        } else {
+            ID target = Message.FindPeersMessage.getTargetId(msg);
+            List<Peer> peers = mRoutingTable.getClosestPeers(target, Message.FindPeersMessage.MAX_PEERS, REACHABLE);
+
+            Message response = getMessagePool().acquire(Message.FindPeersMessage.MAX_RESPONSE_LENGTH);
+            Message.FindPeersMessage.formatResponse(response, peers);
+            response.setRequestId(msg.getRequestId());
+            response.setRemoteSocketAddress(msg.getRemoteSocketAddress());
+            send(response);
+        }
+    }
+
+    private void handleStore(Message msg) {
+        if(msg.isResponse()) {
+            return;
+        }
+
+        final ID key = Message.StoreMessage.getKey(msg);
+        final int ttl = Message.StoreMessage.getTTL(msg);
+        final int length = Message.StoreMessage.getValueLength(msg);
+        boolean stored = false;
+        if(ttl > 0 && length >= 0 && length <= ValueStore.MAX_VALUE_LENGTH) {
+            final long expires = currentTimeMillis() + 1000L * Math.min(ttl, MAX_TTL_SECONDS);
+            stored = mValueStore.put(key, msg.mBuffer, Message.StoreMessage.getValueOffset(msg), length, expires);
+        }
+
+        Message response = getMessagePool().acquire(Message.StoreMessage.RESPONSE_LENGTH);
+        Message.StoreMessage.formatResponse(response, key, stored);
+        response.setRequestId(msg.getRequestId());
+        response.setRemoteSocketAddress(msg.getRemoteSocketAddress());
+        send(response);
+    }
+
+    private void handleFindValue(Message msg) {
+        if(msg.isResponse()) {
+            if(!Message.FindValueMessage.hasValue(msg)) {
+                Message.FindPeersMessage.PeerCursor cursor = Message.FindValueMessage.getPeers(msg, mPeerCursor.get());
+                while(cursor.next()) {
+                    mRoutingTable.getPeer(cursor);
+                }
+            }
+            return;
+        }
+
+        final int keyOffset = Message.FindValueMessage.getKeyOffset(msg);
+        Message response = getMessagePool().acquire(Message.FindValueMessage.MAX_RESPONSE_LENGTH);
+        final int length = mValueStore.get(ID.readHigh(msg.mBuffer, keyOffset), ID.readMid(msg.mBuffer, keyOffset),
+                ID.readLow(msg.mBuffer, keyOffset), currentTimeMillis(),
+                response.mBuffer, Message.FindValueMessage.VALUE_RESPONSE_OFFSET);
+        if(length >= 0) {
+            Message.FindValueMessage.formatValueResponse(response, length);
+        } else {
+            ID key = Message.FindValueMessage.getKey(msg);
+            List<Peer> peers = mRoutingTable.getClosestPeers(key, Message.FindPeersMessage.MAX_PEERS, REACHABLE);
+            Message.FindValueMessage.formatPeersResponse(response, peers);
+        }
+        response.setRequestId(msg.getRequestId());
+        response.setRemoteSocketAddress(msg.getRemoteSocketAddress());
+        send(response);
+    }
+
+    /**
+     * CONNECT messages not addressed to us are relayed on the fast path: only the TTL
+     * and the target ID words are read from the receive buffer, the TTL is bumped in
+     * place and the datagram is copied as is into an outbound message to the next hop.
+     */
+    private void handleConnect(Message msg) {
+        final ByteBuffer buf = msg.mBuffer;
+        final int targetOffset = Message.ConnectMessage.getTargetIdOffset(msg);
+        final long high = ID.readHigh(buf, targetOffset);
+        final long mid = ID.readMid(buf, targetOffset);
+        final int low = ID.readLow(buf, targetOffset);
+        if(!mLocalId.equals(high, mid, low)) {
+            relay(msg, high, mid, low);
+            return;
+        }
+
+        logger.debug("CONNECT{} from {} ttl: {} target: {}",
+                msg.isResponse() ? " response" : "",
+                msg.getRemoteSocketAddress(),
+                Message.ConnectMessage.getTTY(msg),
+                Message.ConnectMessage.getTargetId(msg));
+    }
+
+    private void relay(Message msg, long high, long mid, int low) {
+        final int ttlOffset = Message.ConnectMessage.getTTYOffset(msg);
+        final int ttl = 0xff & msg.mBuffer.get(ttlOffset);
+        final Peer next = ttl < MAX_CONNECT_HOPS ? mRoutingTable.getNextHop(high, mid, low, currentTimeMillis()) : null;
+        if(next == null) {
+            mMetrics.onDropped();
+            logger.debug("can not relay CONNECT from {} ttl: {}", msg.getRemoteSocketAddress(), ttl);
+            return;
+        }
+
+        msg.mBuffer.put(ttlOffset, (byte) (ttl + 1));
+        Message out = getMessagePool().acquire(msg.getLength());
+        msg.copyTo(out);
+        out.setRemoteSocketAddress(next.getInetSocketAddress());
+        send(out);
     }
 
 }
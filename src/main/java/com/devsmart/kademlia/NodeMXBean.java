@@ -0,0 +1,43 @@
+package com.devsmart.kademlia;
+
+
+import java.util.Map;
+
+/**
+ * The JMX view of a node. Register a node with {@link Node#registerMBean()}.
+ * Message counts are keyed by payload type name, with a "_RESPONSE" suffix for
+ * responses, and round trip times are in milliseconds.
+ */
+public interface NodeMXBean {
+
+    String getLocalId();
+
+    Map<String, Long> getPacketsReceived();
+
+    Map<String, Long> getPacketsSent();
+
+    long getDecodeErrors();
+
+    long getDroppedPackets();
+
+    /**
+     * Inbound packets refused by admission control.
+     */
+    long getShedPackets();
+
+    long getRequestTimeouts();
+
+    int getPendingRequests();
+
+    int getSendQueueDepth();
+
+    long getSendQueueDrops();
+
+    Map<String, LatencyHistogram.Snapshot> getRoundTripTimes();
+
+    int[] getBucketSizes();
+
+    int getBucketRefreshes();
+
+    Map<String, Integer> getPeerStatusCounts();
+}
@@ -0,0 +1,196 @@
+package com.devsmart.kademlia;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and round trip histograms for a node. Recording is lock-free and does not
+ * allocate, so it is safe on the event loop's hot path; the getters are the pull API
+ * and also back the node's {@link NodeMXBean}.
+ */
+public class NodeMetrics implements NodeMXBean {
+
+    /**
+     * Number of payload types the 3-bit PT field can hold.
+     */
+    public static final int NUM_TYPES = 8;
+
+    private final Node mNode;
+    private final LongAdder[] mReceived = createCounters(2 * NUM_TYPES);
+    private final LongAdder[] mSent = createCounters(2 * NUM_TYPES);
+    private final LongAdder mDecodeErrors = new LongAdder();
+    private final LongAdder mDropped = new LongAdder();
+    private final LongAdder mShed = new LongAdder();
+    private final LongAdder mTimeouts = new LongAdder();
+    private final LatencyHistogram[] mRtt = new LatencyHistogram[NUM_TYPES];
+
+    NodeMetrics(Node node) {
+        mNode = node;
+        for(int i=0;i<NUM_TYPES;i++) {
+            mRtt[i] = new LatencyHistogram();
+        }
+    }
+
+    private static LongAdder[] createCounters(int size) {
+        LongAdder[] retval = new LongAdder[size];
+        for(int i=0;i<size;i++) {
+            retval[i] = new LongAdder();
+        }
+        return retval;
+    }
+
+    private static int getIndex(int type, boolean response) {
+        return 2 * type + (response ? 1 : 0);
+    }
+
+    public static String getTypeName(int type) {
+        switch (type) {
+            case Message.PING:
+                return "PING";
+            case Message.FINDPEERS:
+                return "FINDPEERS";
+            case Message.CONNECT:
+                return "CONNECT";
+            case Message.STORE:
+                return "STORE";
+            case Message.FIND_VALUE:
+                return "FIND_VALUE";
+            default:
+                return "TYPE_" + type;
+        }
+    }
+
+    void onReceived(Message msg) {
+        mReceived[getIndex(msg.getType(), msg.isResponse())].increment();
+    }
+
+    void onSent(int type, boolean response) {
+        mSent[getIndex(type, response)].increment();
+    }
+
+    void onDecodeError() {
+        mDecodeErrors.increment();
+    }
+
+    void onDropped() {
+        mDropped.increment();
+    }
+
+    void onShed() {
+        mShed.increment();
+    }
+
+    void onTimeout() {
+        mTimeouts.increment();
+    }
+
+    void recordRtt(int type, long millis) {
+        mRtt[type].record(millis);
+    }
+
+    public long getReceived(int type, boolean response) {
+        return mReceived[getIndex(type, response)].sum();
+    }
+
+    public long getSent(int type, boolean response) {
+        return mSent[getIndex(type, response)].sum();
+    }
+
+    public LatencyHistogram getRtt(int type) {
+        return mRtt[type];
+    }
+
+    private static Map<String, Long> toMap(LongAdder[] counters) {
+        LinkedHashMap<String, Long> retval = new LinkedHashMap<String, Long>();
+        for(int i=0;i<counters.length;i++) {
+            final long value = counters[i].sum();
+            if(value > 0) {
+                retval.put(getTypeName(i / 2) + (i % 2 == 1 ? "_RESPONSE" : ""), value);
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public String getLocalId() {
+        return mNode.getLocalId().toString();
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        return toMap(mReceived);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsSent() {
+        return toMap(mSent);
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return mDecodeErrors.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return mDropped.sum();
+    }
+
+    @Override
+    public long getShedPackets() {
+        return mShed.sum();
+    }
+
+    @Override
+    public long getRequestTimeouts() {
+        return mTimeouts.sum();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return mNode.getNumPendingRequests();
+    }
+
+    @Override
+    public int getSendQueueDepth() {
+        return mNode.getTransport().getSendQueueDepth();
+    }
+
+    @Override
+    public long getSendQueueDrops() {
+        return mNode.getTransport().getNumSendDropped();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getRoundTripTimes() {
+        LinkedHashMap<String, LatencyHistogram.Snapshot> retval = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        for(int i=0;i<NUM_TYPES;i++) {
+            if(mRtt[i].getCount() > 0) {
+                retval.put(getTypeName(i), mRtt[i].getSnapshot());
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public int[] getBucketSizes() {
+        return mNode.getRoutingTable().getBucketSizes();
+    }
+
+    @Override
+    public int getBucketRefreshes() {
+        return mNode.getNumBucketRefreshes();
+    }
+
+    @Override
+    public Map<String, Integer> getPeerStatusCounts() {
+        final int[] counts = mNode.getRoutingTable().getStatusCounts();
+        LinkedHashMap<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        for(Peer.Status status : Peer.Status.values()) {
+            retval.put(status.name(), counts[status.ordinal()]);
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,90 @@
+package com.devsmart.kademlia;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free queue of outbound messages with two priorities, written to by
+ * any thread and drained by a single writer. Normal messages go out before low
+ * priority ones. Low priority messages, such as keep-alive pings, are only accepted
+ * while the queue is less than half full, so under load they are dropped long before
+ * responses and lookups are.
+ */
+class OutboundQueue {
+
+    private final ConcurrentLinkedQueue<Message> mNormal = new ConcurrentLinkedQueue<Message>();
+    private final ConcurrentLinkedQueue<Message> mLow = new ConcurrentLinkedQueue<Message>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final LongAdder mDropped = new LongAdder();
+    private final int mCapacity;
+    private final int mLowCapacity;
+
+    OutboundQueue(int capacity) {
+        mCapacity = capacity;
+        mLowCapacity = capacity / 2;
+    }
+
+    /**
+     * @param priority {@link Transport#PRIORITY_NORMAL} or {@link Transport#PRIORITY_LOW}
+     * @return false if the queue is too full for a message of this priority; the
+     * message was not queued and still belongs to the caller
+     */
+    public boolean offer(Message msg, int priority) {
+        final boolean low = priority == Transport.PRIORITY_LOW;
+        final int limit = low ? mLowCapacity : mCapacity;
+        int size;
+        do {
+            size = mSize.get();
+            if(size >= limit) {
+                mDropped.increment();
+                return false;
+            }
+        } while(!mSize.compareAndSet(size, size + 1));
+
+        if(low) {
+            mLow.add(msg);
+        } else {
+            mNormal.add(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Take the next message to send. Only the writer may call this.
+     */
+    public Message poll() {
+        Message retval = mNormal.poll();
+        if(retval == null) {
+            retval = mLow.poll();
+        }
+        if(retval != null) {
+            mSize.decrementAndGet();
+        }
+        return retval;
+    }
+
+    public int size() {
+        return mSize.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Count a message that was taken from the queue but could not be sent.
+     */
+    public void onDropped() {
+        mDropped.increment();
+    }
+
+    /**
+     * @return the number of messages refused because the queue was full, plus those
+     * counted by {@link #onDropped()}
+     */
+    public long getNumDropped() {
+        return mDropped.sum();
+    }
+}
@@ -3,18 +3,16 @@ package com.devsmart.kademlia;
 
 import com.google.common.io.BaseEncoding;
 
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.Random;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 public class Peer {
 
     private static final int TIME_DIEING = 15 * 1000;
     private static final int TIME_DEAD = 60 * 1000;
-    private static final Random RANDOM = new Random();
+
+    static final long NO_ADDRESS = -1;
 
     public enum Status {
         Unknown,
@@ -25,48 +23,111 @@ public class Peer {
 
     public final ID id;
     private InetSocketAddress mSocketAddress;
-    private long mFirstSeen = -1;
-    private long mLastSeen = -1;
-    private Future<?> mKeepAliveTask;
+    private final long mPackedAddress;
+    private final Clock mClock;
+    private long mFirstSeen = Long.MIN_VALUE;
+    private long mLastSeen = Long.MIN_VALUE;
+    KeepAliveTask mKeepAliveTask;
+    private final RttEstimator mRtt = new RttEstimator();
     private final long mCreated;
 
     public Peer(ID id, InetSocketAddress socketAddress) {
+        this(id, socketAddress, Clock.SYSTEM);
+    }
+
+    public Peer(ID id, InetSocketAddress socketAddress, Clock clock) {
         this.id = id;
         this.mSocketAddress = socketAddress;
-        this.mCreated = System.nanoTime();
+        this.mPackedAddress = packAddress(socketAddress);
+        this.mClock = clock;
+        this.mCreated = clock.currentTimeMillis();
+    }
+
+    /**
+     * Pack an IPv4 socket address into a long: the 32-bit address followed by the
+     * 16-bit port. Returns {@link #NO_ADDRESS} for anything else.
+     */
+    static long packAddress(InetSocketAddress socketAddress) {
+        final InetAddress address = socketAddress.getAddress();
+        if(address instanceof Inet4Address) {
+            //Inet4Address.hashCode() is its 32-bit address; unlike getAddress() it does not copy
+            return packAddress(address.hashCode(), socketAddress.getPort());
+        }
+        return NO_ADDRESS;
+    }
+
+    static long packAddress(int ipv4, int port) {
+        return ((0xFFFFFFFFL & ipv4) << 16) | (0xFFFF & port);
+    }
+
+    long getPackedAddress() {
+        return mPackedAddress;
+    }
+
+    boolean matches(long high, long mid, int low, long packedAddress) {
+        return mPackedAddress == packedAddress
+                && id.getHigh() == high
+                && id.getMid() == mid
+                && id.getLow() == low;
     }
 
     public InetSocketAddress getInetSocketAddress() {
         return mSocketAddress;
     }
 
+    /**
+     * Round trip times measured from PING and FINDPEERS requests sent to this peer.
+     */
+    public RttEstimator getRtt() {
+        return mRtt;
+    }
+
     public void markSeen() {
-        mLastSeen = System.nanoTime();
-        if(mFirstSeen == -1) {
-            mFirstSeen = mLastSeen;
+        markSeen(mClock.currentTimeMillis());
+    }
+
+    public void markSeen(long now) {
+        mLastSeen = now;
+        if(mFirstSeen == Long.MIN_VALUE) {
+            mFirstSeen = now;
         }
     }
 
+    /**
+     * @return the time in milliseconds this peer was last seen, or Long.MIN_VALUE if it never was
+     */
+    long getLastSeenTime() {
+        return mLastSeen;
+    }
+
+    /**
+     * @return milliseconds since this peer was last seen, or Long.MAX_VALUE if it never was
+     */
     public long getLastSeenMillisec() {
-        long retval = System.nanoTime() - mLastSeen;
-        return retval / 1000000;
+        return mLastSeen == Long.MIN_VALUE ? Long.MAX_VALUE : mClock.currentTimeMillis() - mLastSeen;
     }
 
     public long getFirstSeen() {
-        long retval = System.nanoTime() - mFirstSeen;
-        return retval / 1000000;
+        return mFirstSeen == Long.MIN_VALUE ? Long.MAX_VALUE : mClock.currentTimeMillis() - mFirstSeen;
     }
 
     public long getAge() {
-        long retval = System.nanoTime() - mCreated;
-        return retval / 1000000;
+        return mClock.currentTimeMillis() - mCreated;
     }
 
     public Status getStatus() {
-        if(mFirstSeen == -1){
-            return Status.Unknown;
+        return getStatus(mClock.currentTimeMillis());
+    }
+
+    /**
+     * Get the status of this peer at {@code now}, a time read from this peer's clock.
+     * Callers checking many peers read the clock once and pass it here.
+     */
+    public Status getStatus(long now) {
+        if(mFirstSeen == Long.MIN_VALUE){
+            return now - mCreated < TIME_DEAD ? Status.Unknown : Status.Dead;
         }
-        final long lastSeen = getLastSeenMillisec();
+        final long lastSeen = now - mLastSeen;
         if(lastSeen < TIME_DIEING) {
             return Status.Alive;
         } else if(lastSeen < TIME_DEAD) {
@@ -76,22 +137,6 @@ public class Peer {
         }
     }
 
-    public synchronized void startKeepAlive(ScheduledExecutorService executorService, ID localId, DatagramSocket socket) {
-        if(mKeepAliveTask == null) {
-            KeepAliveTask task = new KeepAliveTask(this, localId, socket);
-
-            long wait = 100 + RANDOM.nextInt(600);
-            mKeepAliveTask = executorService.scheduleWithFixedDelay(task, wait, 1500, TimeUnit.MILLISECONDS);
-        }
-    }
-
-    public synchronized void stopKeepAlive() {
-        if(mKeepAliveTask != null) {
-            mKeepAliveTask.cancel(false);
-            mKeepAliveTask = null;
-        }
-    }
-
     @Override
     public int hashCode() {
         int retval = id.hashCode() ^ mSocketAddress.hashCode();
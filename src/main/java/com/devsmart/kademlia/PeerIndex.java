@@ -0,0 +1,134 @@
+package com.devsmart.kademlia;
+
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing hash index of the peers held by a {@link RoutingTable}, keyed on the
+ * peer's ID words and packed IPv4 address/port. Lookups take primitive keys, never
+ * allocate and never lock. Writers are serialized on the index and use linear probing
+ * with backward-shift deletion, so a reader racing a removal can miss an entry
+ * (callers then fall back to a locked path) but never sees a wrong one.
+ */
+class PeerIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<Peer> mTable = new AtomicReferenceArray<Peer>(INITIAL_CAPACITY);
+    private int mSize;
+
+    private static int hash(long high, long mid, int low, long address) {
+        long h = high ^ (mid * 31) ^ low ^ (address * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private static int hash(Peer p) {
+        return hash(p.id.getHigh(), p.id.getMid(), p.id.getLow(), p.getPackedAddress());
+    }
+
+    public Peer get(long high, long mid, int low, long address) {
+        if(address == Peer.NO_ADDRESS) {
+            return null;
+        }
+
+        final AtomicReferenceArray<Peer> table = mTable;
+        final int mask = table.length() - 1;
+        int i = hash(high, mid, low, address) & mask;
+        for(int n=0;n<table.length();n++) {
+            Peer p = table.get(i);
+            if(p == null) {
+                return null;
+            }
+            if(p.matches(high, mid, low, address)) {
+                return p;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public Peer get(ID id, long address) {
+        return get(id.getHigh(), id.getMid(), id.getLow(), address);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void put(Peer peer) {
+        if(peer.getPackedAddress() == Peer.NO_ADDRESS) {
+            return;
+        }
+
+        if((mSize + 1) * 2 > mTable.length()) {
+            resize(mTable.length() * 2);
+        }
+        if(insert(mTable, peer)) {
+            mSize++;
+        }
+    }
+
+    private static boolean insert(AtomicReferenceArray<Peer> table, Peer peer) {
+        final int mask = table.length() - 1;
+        int i = hash(peer) & mask;
+        Peer p;
+        while((p = table.get(i)) != null) {
+            if(p == peer) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table.set(i, peer);
+        return true;
+    }
+
+    private void resize(int capacity) {
+        final AtomicReferenceArray<Peer> oldTable = mTable;
+        AtomicReferenceArray<Peer> table = new AtomicReferenceArray<Peer>(capacity);
+        for(int i=0;i<oldTable.length();i++) {
+            Peer p = oldTable.get(i);
+            if(p != null) {
+                insert(table, p);
+            }
+        }
+        mTable = table;
+    }
+
+    public synchronized boolean remove(Peer peer) {
+        if(peer.getPackedAddress() == Peer.NO_ADDRESS) {
+            return false;
+        }
+
+        final AtomicReferenceArray<Peer> table = mTable;
+        final int mask = table.length() - 1;
+        int i = hash(peer) & mask;
+        Peer p;
+        while((p = table.get(i)) != peer) {
+            if(p == null) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        //shift back any following entries that probed past the freed slot
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            p = table.get(j);
+            if(p == null) {
+                break;
+            }
+            int k = hash(p) & mask;
+            if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                continue;
+            }
+            table.set(i, p);
+            i = j;
+        }
+        table.set(i, null);
+        mSize--;
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+package com.devsmart.kademlia;
+
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outstanding requests keyed by request ID. Each entry is completed by the first of its
+ * response or its timeout to remove it from the table; timeouts share the node's single
+ * timing wheel and are never cancelled, an entry that was already answered simply finds
+ * nothing to do when its timeout fires.
+ */
+class PendingRequests {
+
+    static class Request extends TimingWheel.Timeout {
+        final int mId;
+        final int mType;
+        final InetSocketAddress mRemoteAddress;
+        final long mSentTime;
+        final Peer mPeer;
+        final CompletableFuture<Message> mFuture = new CompletableFuture<Message>();
+        private final PendingRequests mTable;
+
+        Request(PendingRequests table, int id, int type, InetSocketAddress remoteAddress, Peer peer, long sentTime) {
+            mTable = table;
+            mId = id;
+            mType = type;
+            mRemoteAddress = remoteAddress;
+            mPeer = peer;
+            mSentTime = sentTime;
+        }
+
+        @Override
+        protected void onExpired(long now) {
+            if(mTable.mPending.remove(mId, this)) {
+                mTable.mMetrics.onTimeout();
+                mFuture.completeExceptionally(new TimeoutException("no response from " + mRemoteAddress));
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Request> mPending = new ConcurrentHashMap<Integer, Request>();
+    private final AtomicInteger mNextId = new AtomicInteger((int) System.nanoTime());
+    private final NodeMetrics mMetrics;
+
+    PendingRequests(NodeMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Assign {@code msg} a fresh request ID and start tracking it.
+     * @param peer the peer the request is sent to, if known; its RTT estimate is fed
+     *             from the response
+     */
+    public Request register(Message msg, Peer peer, long now) {
+        int id;
+        Request request;
+        do {
+            id = mNextId.incrementAndGet();
+            request = new Request(this, id, msg.getType(), msg.getRemoteSocketAddress(), peer, now);
+        } while(id == 0 || mPending.putIfAbsent(id, request) != null);
+
+        msg.setRequestId(id);
+        return request;
+    }
+
+    /**
+     * @return true if {@code response} answers a request that is still waiting
+     */
+    public boolean isPending(Message response) {
+        final int id = response.getRequestId();
+        if(id == 0) {
+            return false;
+        }
+        Request request = mPending.get(id);
+        return request != null
+                && request.mType == response.getType()
+                && request.mRemoteAddress.equals(response.getRemoteSocketAddress());
+    }
+
+    /**
+     * Complete the request that {@code response} answers and record its round trip
+     * time. The response is copied, so {@code response} may be reused once this returns.
+     * @param executor runs the future's completion, or null to complete it on the calling thread
+     * @return the completed request or null if the response does not match one
+     */
+    public Request complete(Message response, long now, Executor executor) {
+        final int id = response.getRequestId();
+        if(id == 0) {
+            return null;
+        }
+
+        Request request = mPending.get(id);
+        if(request == null
+                || request.mType != response.getType()
+                || !request.mRemoteAddress.equals(response.getRemoteSocketAddress())
+                || !mPending.remove(id, request)) {
+            return null;
+        }
+
+        final long rtt = now - request.mSentTime;
+        mMetrics.recordRtt(request.mType, rtt);
+        if(request.mPeer != null) {
+            request.mPeer.getRtt().update(rtt);
+        }
+        final Message copy = response.copy();
+        if(executor == null) {
+            request.mFuture.complete(copy);
+        } else {
+            final Request completed = request;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completed.mFuture.complete(copy);
+                }
+            });
+        }
+        return request;
+    }
+
+    public void failAll(Throwable cause) {
+        for(Request request : mPending.values()) {
+            if(mPending.remove(request.mId, request)) {
+                request.mFuture.completeExceptionally(cause);
+            }
+        }
+    }
+}
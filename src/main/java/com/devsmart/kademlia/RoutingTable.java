@@ -1,74 +1,379 @@
 package com.devsmart.kademlia;
 
 
-import com.google.common.collect.ComparisonChain;
-
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.Predicate;
 
+/**
+ * The node's k-buckets. Lookups read each bucket's current immutable version without
+ * taking any locks; inserts and evictions are serialized per bucket.
+ */
 public class RoutingTable {
 
+    public static final int NUM_BUCKETS = ID.NUM_BYTES * 8;
+    public static final int DEFAULT_K = 8;
+    static final long PROBE_TIMEOUT = 5 * 1000;
+
+    public interface Listener {
+        void onPeerAdded(Peer peer);
+        void onPeerRemoved(Peer peer);
+
+        /**
+         * Called when a full bucket wants to know if its least recently seen peer is
+         * still alive. The peer is evicted in favor of a replacement if it has not been
+         * seen by the time the probe times out.
+         */
+        void onProbe(Peer peer);
+    }
+
     private final ID mLocalNode;
-    public ArrayList<Peer>[] mPeers;
+    private final PeerIndex mIndex = new PeerIndex();
+    private final Clock mClock;
+    public final KBucket[] mPeers;
+    private Listener mListener;
 
-    @SuppressWarnings("unchecked")
     public RoutingTable(ID localId) {
+        this(localId, DEFAULT_K);
+    }
+
+    public RoutingTable(ID localId, int k) {
+        this(localId, k, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock the clock given to every peer this table creates
+     */
+    public RoutingTable(ID localId, int k, Clock clock) {
         mLocalNode = localId;
-        mPeers = new ArrayList[ID.NUM_BYTES*8];
-        for(int i=0;i<ID.NUM_BYTES*8;i++) {
-            mPeers[i] = new ArrayList<Peer>(8);
+        mClock = clock;
+        mPeers = new KBucket[NUM_BUCKETS];
+        final long now = clock.currentTimeMillis();
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            mPeers[i] = new KBucket(k, mIndex);
+            mPeers[i].mLastTouched = now;
         }
     }
 
-    public ArrayList<Peer> getBucket(ID id) {
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Record that a lookup went into the range of the bucket {@code target} falls in,
+     * so the bucket does not need refreshing for a while.
+     */
+    public void touchBucket(ID target, long now) {
+        final int index = Math.min(target.getNumSharedPrefixBits(mLocalNode), NUM_BUCKETS - 1);
+        mPeers[index].mLastTouched = now;
+    }
+
+    /**
+     * Find the bucket that has gone longest without a lookup into its range, among those
+     * idle for more than {@code maxIdle}. Buckets closer than the closest non-empty one
+     * are skipped; the ranges they cover are empty and a lookup for our own ID already
+     * searches them.
+     * @return the bucket index or -1 if no bucket is stale
+     */
+    public int getStalestBucket(long now, long maxIdle) {
+        int closest = -1;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            if(mPeers[i].size() > 0) {
+                closest = i;
+            }
+        }
+
+        int retval = -1;
+        long oldest = now - maxIdle;
+        for(int i=0;i<=closest;i++) {
+            final long lastTouched = mPeers[i].mLastTouched;
+            if(lastTouched < oldest) {
+                oldest = lastTouched;
+                retval = i;
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Create a random ID that falls in bucket {@code index}: it shares exactly
+     * {@code index} leading bits with the local ID.
+     */
+    ID getRandomId(int index, Random r) {
+        byte[] retval = mLocalNode.getBytes();
+        byte[] random = new byte[ID.NUM_BYTES];
+        r.nextBytes(random);
+
+        final int byteIndex = index / 8;
+        final int bit = 0x80 >>> (index % 8);
+        final int lowerBits = bit - 1;
+        retval[byteIndex] = (byte) (((retval[byteIndex] & ~lowerBits) | (random[byteIndex] & lowerBits)) ^ bit);
+        for(int i=byteIndex+1;i<ID.NUM_BYTES;i++) {
+            retval[i] = random[i];
+        }
+        return new ID(retval, 0);
+    }
+
+    public KBucket getBucket(ID id) {
         int numBitsInCommon = id.getNumSharedPrefixBits(mLocalNode);
-        ArrayList<Peer> bucket = mPeers[numBitsInCommon];
+        KBucket bucket = mPeers[numBitsInCommon];
         return bucket;
     }
 
+    /**
+     * Get every peer in the table ordered with Alive peers first, then by
+     * distance to {@code target}, closest first.
+     */
     public List<Peer> getRoutingPeers(ID target) {
-        ArrayList<Peer> retval = new ArrayList<Peer>();
-        getAllPeers(retval);
+        ArrayList<Peer> alive = new ArrayList<Peer>();
+        ArrayList<Peer> other = new ArrayList<Peer>();
+        final long now = mClock.currentTimeMillis();
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            for(Peer p : mPeers[i].snapshot()) {
+                if(p.getStatus(now) == Peer.Status.Alive) {
+                    alive.add(p);
+                } else {
+                    other.add(p);
+                }
+            }
+        }
 
         final DistanceComparator distanceComparator = new DistanceComparator(target);
-        Comparator<Peer> comparator = new Comparator<Peer>() {
-            @Override
-            public int compare(Peer a, Peer b) {
-                final Peer.Status statusA = a.getStatus();
-                final Peer.Status statusB = b.getStatus();
-
-                return ComparisonChain.start()
-                        .compareTrueFirst(statusA == Peer.Status.Alive, statusB == Peer.Status.Alive)
-                        .compare(b, a, distanceComparator)
-                        .result();
+        Collections.sort(alive, distanceComparator);
+        Collections.sort(other, distanceComparator);
+        alive.addAll(other);
+        return alive;
+    }
+
+    /**
+     * Select the {@code k} peers closest to {@code target} that pass {@code filter},
+     * ordered closest first. Buckets are visited from the one that shares the longest
+     * prefix with {@code target} outward, and the walk stops as soon as no remaining
+     * bucket can hold a closer peer. {@code filter} is evaluated at most once per peer.
+     */
+    public List<Peer> getClosestPeers(ID target, int k, Predicate<Peer> filter) {
+        final DistanceComparator distanceComparator = new DistanceComparator(target);
+        final PriorityQueue<Peer> heap = new PriorityQueue<Peer>(k + 1, Collections.reverseOrder(distanceComparator));
+
+        //Peers in bucket d agree with target on bit d, so they are closer than any
+        //peer in buckets past d, which in turn are all closer than those in buckets before d.
+        final int d = target.getNumSharedPrefixBits(mLocalNode);
+        if(d < NUM_BUCKETS) {
+            select(mPeers[d], k, filter, heap, distanceComparator);
+            if(heap.size() < k) {
+                for(int i=d+1;i<NUM_BUCKETS;i++) {
+                    select(mPeers[i], k, filter, heap, distanceComparator);
+                }
+            }
+        }
+        for(int i=Math.min(d, NUM_BUCKETS)-1;i>=0 && heap.size() < k;i--) {
+            select(mPeers[i], k, filter, heap, distanceComparator);
+        }
+
+        Peer[] retval = new Peer[heap.size()];
+        for(int i=retval.length-1;i>=0;i--) {
+            retval[i] = heap.poll();
+        }
+        return Arrays.asList(retval);
+    }
+
+    private static void select(KBucket bucket, int k, Predicate<Peer> filter, PriorityQueue<Peer> heap, Comparator<Peer> distanceComparator) {
+        for(Peer p : bucket.snapshot()) {
+            if(heap.size() < k) {
+                if(filter.test(p)) {
+                    heap.add(p);
+                }
+            } else if(distanceComparator.compare(p, heap.peek()) < 0 && filter.test(p)) {
+                heap.poll();
+                heap.add(p);
+            }
+        }
+    }
+
+    /**
+     * Pick the peer to forward a message addressed to the target ID words to: the known
+     * peer closest to the target, provided it is strictly closer than this node, so
+     * every hop makes progress and messages cannot loop. Dead peers are skipped.
+     * Does not allocate.
+     * @return the next hop or null if no known peer is closer to the target than this node
+     */
+    Peer getNextHop(long high, long mid, int low, long now) {
+        //Peers in bucket d are all closer to the target than we are and than any peer in
+        //a later bucket; peers in earlier buckets are all farther away than we are.
+        final int d = mLocalNode.getNumSharedPrefixBits(high, mid, low);
+        Peer retval = null;
+        for(int i=d;i<NUM_BUCKETS && (retval == null || i == d);i++) {
+            final Peer[] peers = mPeers[i].snapshot();
+            for(int j=0;j<peers.length;j++) {
+                final Peer p = peers[j];
+                if(ID.compareDistance(p.id, retval == null ? mLocalNode : retval.id, high, mid, low) < 0
+                        && p.getStatus(now) != Peer.Status.Dead) {
+                    retval = p;
+                }
             }
-        };
-        Collections.sort(retval, comparator);
+        }
         return retval;
     }
 
+    /**
+     * Get the peer with the given id and address, adding it to the table if it is new.
+     * If the peer's bucket is full the new peer goes into the bucket's replacement
+     * cache and the bucket's least recently seen peer is probed; that peer is replaced
+     * once it is Dead or has not answered the probe in time.
+     */
     public Peer getPeer(ID id, InetSocketAddress socketAddress) {
-        Peer retval = new Peer(id, socketAddress);
         if(id.equals(mLocalNode)) {
+            return new Peer(id, socketAddress, mClock);
+        }
+
+        final long packedAddress = Peer.packAddress(socketAddress);
+        Peer retval = mIndex.get(id, packedAddress);
+        if(retval != null) {
             return retval;
         }
 
-        ArrayList<Peer> bucket = getBucket(id);
+        Peer added = null;
+        Peer removed = null;
+        Peer probe = null;
+
+        KBucket bucket = getBucket(id);
         synchronized (bucket) {
-            for (Peer p : bucket) {
-                if (p.equals(retval)) {
-                    return p;
+            //Scan the bucket rather than asking the index again: a removal from another
+            //bucket may be shifting index entries right now and make the lookup miss.
+            retval = bucket.find(id, socketAddress);
+            if(retval != null) {
+                return retval;
+            }
+
+            retval = new Peer(id, socketAddress, mClock);
+            if(!bucket.isFull()) {
+                bucket.add(retval);
+                added = retval;
+            } else {
+                bucket.addReplacement(retval);
+
+                final long now = mClock.currentTimeMillis();
+                if(bucket.mProbe != null && bucket.mProbe.getLastSeenTime() >= bucket.mProbeTime) {
+                    //the last probe was answered
+                    bucket.mProbe = null;
+                }
+
+                Peer oldest = bucket.getLeastRecentlySeen();
+                if(oldest.getStatus(now) == Peer.Status.Dead
+                        || (bucket.mProbe == oldest && now - bucket.mProbeTime > PROBE_TIMEOUT)) {
+                    bucket.remove(oldest);
+                    removed = oldest;
+                    added = bucket.promoteReplacement(now);
+                } else if(bucket.mProbe == null) {
+                    bucket.mProbe = oldest;
+                    bucket.mProbeTime = now;
+                    probe = oldest;
                 }
             }
+        }
+
+        notifyListener(added, removed, probe);
+        return retval;
+    }
+
+    /**
+     * Find a peer in the table or one of its replacement caches without allocating.
+     * @return the peer or null if it is not known
+     */
+    Peer findPeer(long high, long mid, int low, long packedAddress) {
+        return mIndex.get(high, mid, low, packedAddress);
+    }
 
-            bucket.add(retval);
+    /**
+     * Find a known peer whose ID is stored in {@code buf} at {@code idOffset} without allocating.
+     */
+    Peer findPeer(ByteBuffer buf, int idOffset, long packedAddress) {
+        return mIndex.get(ID.readHigh(buf, idOffset), ID.readMid(buf, idOffset), ID.readLow(buf, idOffset), packedAddress);
+    }
+
+    /**
+     * Resolve the entry under {@code cursor} to a peer, allocating an ID and address only
+     * if the peer is not already known. Entries naming the local node are ignored.
+     * @return the peer or null if the entry is the local node
+     */
+    Peer getPeer(Message.FindPeersMessage.PeerCursor cursor) {
+        if(mLocalNode.equals(cursor.getIdHigh(), cursor.getIdMid(), cursor.getIdLow())) {
+            return null;
+        }
+        Peer retval = mIndex.get(cursor.getIdHigh(), cursor.getIdMid(), cursor.getIdLow(), cursor.getPackedAddress());
+        if(retval == null) {
+            retval = getPeer(cursor.getId(), cursor.getSocketAddress());
+        }
+        return retval;
+    }
+
+    /**
+     * Remove a peer from the table, promoting a replacement into its place if one is available.
+     */
+    public boolean removePeer(Peer peer) {
+        Peer added = null;
+        boolean retval;
+        KBucket bucket = getBucket(peer.id);
+        synchronized (bucket) {
+            retval = bucket.remove(peer);
+            if(retval) {
+                added = bucket.promoteReplacement(mClock.currentTimeMillis());
+            }
+        }
+
+        notifyListener(added, retval ? peer : null, null);
+        return retval;
+    }
+
+    public boolean contains(Peer peer) {
+        return !peer.id.equals(mLocalNode) && getBucket(peer.id).contains(peer);
+    }
+
+    private void notifyListener(Peer added, Peer removed, Peer probe) {
+        final Listener listener = mListener;
+        if(listener != null) {
+            if(removed != null) {
+                listener.onPeerRemoved(removed);
+            }
+            if(added != null) {
+                listener.onPeerAdded(added);
+            }
+            if(probe != null) {
+                listener.onProbe(probe);
+            }
+        }
+    }
+
+    public int[] getBucketSizes() {
+        int[] retval = new int[NUM_BUCKETS];
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            retval[i] = mPeers[i].size();
+        }
+        return retval;
+    }
+
+    /**
+     * Count the peers in the table by status, indexed by {@link Peer.Status#ordinal()}.
+     */
+    public int[] getStatusCounts() {
+        int[] retval = new int[Peer.Status.values().length];
+        final long now = mClock.currentTimeMillis();
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            for(Peer p : mPeers[i].snapshot()) {
+                retval[p.getStatus(now).ordinal()]++;
+            }
         }
         return retval;
     }
 
     public void getAllPeers(Collection<Peer> peerList) {
-        for(int i=0;i<ID.NUM_BYTES*8;i++){
-            peerList.addAll(mPeers[i]);
+        for(int i=0;i<NUM_BUCKETS;i++){
+            mPeers[i].getPeers(peerList);
         }
     }
 }
@@ -0,0 +1,137 @@
+package com.devsmart.kademlia;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads and writes routing table snapshots so a restarted node can rejoin without
+ * bootstrapping from scratch. A snapshot is written through a memory-mapped temporary
+ * file that is then atomically renamed over the old one, so a reader never sees a
+ * partial snapshot.
+ *
+ * <pre>
+ *   Header: magic (4) | version (2) | count (4)
+ *   Record: ID (20) | IPv4 Addr. (4) | Port (2) | last seen, epoch millis (8) | srtt millis (4)
+ * </pre>
+ *
+ * Last seen times are stored as wall clock times since node clocks are monotonic and
+ * mean nothing after a restart. An srtt of -1 means the peer was never timed.
+ */
+public class RoutingTableSnapshot {
+
+    private static final int MAGIC = 0x4B445453; //KDTS
+    private static final short VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 2 + 4;
+    static final int RECORD_LENGTH = ID.NUM_BYTES + 4 + 2 + 8 + 4;
+
+    public static class Entry {
+        public final ID id;
+        public final InetSocketAddress socketAddress;
+        public final long lastSeenEpochMillis;
+        public final int srtt;
+
+        Entry(ID id, InetSocketAddress socketAddress, long lastSeenEpochMillis, int srtt) {
+            this.id = id;
+            this.socketAddress = socketAddress;
+            this.lastSeenEpochMillis = lastSeenEpochMillis;
+            this.srtt = srtt;
+        }
+    }
+
+    /**
+     * Write the IPv4 peers in {@code peers} to {@code file}, replacing it.
+     * @param clock the clock the peers' last seen times were read from
+     * @return the number of peers written
+     */
+    public static int write(Path file, Collection<Peer> peers, Clock clock) throws IOException {
+        ArrayList<Peer> ipv4Peers = new ArrayList<Peer>(peers.size());
+        for(Peer p : peers) {
+            if(p.getPackedAddress() != Peer.NO_ADDRESS) {
+                ipv4Peers.add(p);
+            }
+        }
+
+        final long wallOffset = System.currentTimeMillis() - clock.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + ipv4Peers.size() * RECORD_LENGTH);
+            buf.putInt(MAGIC);
+            buf.putShort(VERSION);
+            buf.putInt(ipv4Peers.size());
+            for(int i=0;i<ipv4Peers.size();i++) {
+                Peer p = ipv4Peers.get(i);
+                final long packed = p.getPackedAddress();
+                final long lastSeen = p.getLastSeenTime();
+                final RttEstimator rtt = p.getRtt();
+
+                p.id.write(buf, buf.position());
+                buf.position(buf.position() + ID.NUM_BYTES);
+                buf.putInt((int) (packed >>> 16));
+                buf.putShort((short) packed);
+                buf.putLong(lastSeen == Long.MIN_VALUE ? 0 : lastSeen + wallOffset);
+                buf.putInt(rtt.hasSample() ? (int) Math.min(Integer.MAX_VALUE, rtt.getSrtt()) : -1);
+            }
+            buf.force();
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return ipv4Peers.size();
+    }
+
+    /**
+     * Read a snapshot, most recently seen peers first.
+     */
+    public static List<Entry> read(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            if(size < HEADER_LENGTH) {
+                throw new IOException("snapshot too short: " + file);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                throw new IOException("not a routing table snapshot: " + file);
+            }
+            final int count = buf.getInt();
+            if(count < 0 || HEADER_LENGTH + (long) count * RECORD_LENGTH > size) {
+                throw new IOException("truncated snapshot: " + file);
+            }
+
+            ArrayList<Entry> retval = new ArrayList<Entry>(count);
+            for(int i=0;i<count;i++) {
+                ID id = ID.read(buf, buf.position());
+                buf.position(buf.position() + ID.NUM_BYTES);
+                final int ipv4 = buf.getInt();
+                final int port = 0xFFFF & buf.getShort();
+                final long lastSeen = buf.getLong();
+                final int srtt = buf.getInt();
+                retval.add(new Entry(id, Message.toSocketAddress(ipv4, port), lastSeen, srtt));
+            }
+
+            Collections.sort(retval, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(b.lastSeenEpochMillis, a.lastSeenEpochMillis);
+                }
+            });
+            return retval;
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.devsmart.kademlia;
+
+
+/**
+ * Smoothed round-trip time and variance in the style of RFC 6298, used to derive
+ * adaptive request timeouts.
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double mSrtt = -1;
+    private double mRttVar;
+
+    public synchronized void update(long rttMillis) {
+        if(mSrtt < 0) {
+            mSrtt = rttMillis;
+            mRttVar = rttMillis / 2.0;
+        } else {
+            mRttVar = (1 - BETA) * mRttVar + BETA * Math.abs(mSrtt - rttMillis);
+            mSrtt = (1 - ALPHA) * mSrtt + ALPHA * rttMillis;
+        }
+    }
+
+    public synchronized boolean hasSample() {
+        return mSrtt >= 0;
+    }
+
+    /**
+     * @return the smoothed RTT in milliseconds, or -1 before the first sample
+     */
+    public synchronized long getSrtt() {
+        return Math.round(mSrtt);
+    }
+
+    public synchronized long getRttVar() {
+        return Math.round(mRttVar);
+    }
+
+    /**
+     * @return srtt + 4 * rttvar clamped to [min, max], or {@code initial} before the first sample
+     */
+    public synchronized long getTimeout(long initial, long min, long max) {
+        if(mSrtt < 0) {
+            return initial;
+        }
+        long retval = Math.round(mSrtt + 4 * mRttVar);
+        return Math.max(min, Math.min(max, retval));
+    }
+}
@@ -0,0 +1,219 @@
+package com.devsmart.kademlia;
+
+
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * An in-memory network that runs many nodes in one JVM on a {@link VirtualClock}.
+ * Delivering a datagram, running a task and ticking a node's timers are all events on
+ * a single queue, processed in time order by whichever thread calls one of the run
+ * methods; nothing happens between calls. Datagrams are delayed by a uniformly random
+ * latency and dropped at a fixed loss rate, and endpoints can be taken offline and
+ * brought back to model churn. All endpoints share one heap {@link MessagePool}.
+ *
+ * The network is not thread safe. Nodes on it must only be used from the thread that
+ * runs it.
+ */
+public class SimulatedNetwork {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedNetwork.class);
+
+    private static final int PORT = 5000;
+
+    static abstract class Event implements Comparable<Event> {
+        long mTime;
+        long mSeq;
+
+        abstract void run();
+
+        @Override
+        public int compareTo(Event o) {
+            if(mTime != o.mTime) {
+                return mTime < o.mTime ? -1 : 1;
+            }
+            return mSeq < o.mSeq ? -1 : (mSeq == o.mSeq ? 0 : 1);
+        }
+    }
+
+    private class Delivery extends Event {
+        final Message mMsg;
+        final InetSocketAddress mTo;
+
+        Delivery(Message msg, InetSocketAddress to) {
+            mMsg = msg;
+            mTo = to;
+        }
+
+        @Override
+        void run() {
+            final SimulatedTransport endpoint = mEndpoints.get(mTo);
+            if(endpoint != null && endpoint.isOnline()) {
+                mNumDelivered++;
+                endpoint.deliver(mMsg);
+            } else {
+                mNumDropped++;
+            }
+            mMessagePool.release(mMsg);
+        }
+    }
+
+    private final VirtualClock mClock;
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    private final HashMap<InetSocketAddress, SimulatedTransport> mEndpoints = new HashMap<InetSocketAddress, SimulatedTransport>();
+    private final MessagePool mMessagePool = new MessagePool(false);
+    private long mMinLatency = 10;
+    private long mMaxLatency = 100;
+    private double mLossRate;
+    private long mNextSeq;
+    private int mNextHost = 1;
+    private long mNumSent;
+    private long mNumDelivered;
+    private long mNumDropped;
+
+    public SimulatedNetwork(long seed) {
+        this(seed, new VirtualClock());
+    }
+
+    public SimulatedNetwork(long seed, VirtualClock clock) {
+        mRandom = new Random(seed);
+        mClock = clock;
+    }
+
+    public VirtualClock getClock() {
+        return mClock;
+    }
+
+    public MessagePool getMessagePool() {
+        return mMessagePool;
+    }
+
+    /**
+     * Delay every datagram by a uniformly random latency in [min, max] milliseconds.
+     */
+    public void setLatency(long min, long max) {
+        if(min < 0 || max < min) {
+            throw new IllegalArgumentException("bad latency range: " + min + "-" + max);
+        }
+        mMinLatency = min;
+        mMaxLatency = max;
+    }
+
+    /**
+     * Drop each datagram with probability {@code lossRate}.
+     */
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    public long getNumSent() {
+        return mNumSent;
+    }
+
+    public long getNumDelivered() {
+        return mNumDelivered;
+    }
+
+    public long getNumDropped() {
+        return mNumDropped;
+    }
+
+    public int getNumPendingEvents() {
+        return mEvents.size();
+    }
+
+    /**
+     * Create an endpoint with a fresh address in 10.0.0.0/8.
+     */
+    public SimulatedTransport createTransport() {
+        final int host = mNextHost++;
+        try {
+            InetAddress address = InetAddress.getByAddress(new byte[] {
+                    10, (byte) (host >>> 16), (byte) (host >>> 8), (byte) host
+            });
+            return new SimulatedTransport(this, new InetSocketAddress(address, PORT));
+        } catch (UnknownHostException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    void register(SimulatedTransport endpoint) {
+        mEndpoints.put(endpoint.getLocalAddress(), endpoint);
+    }
+
+    void unregister(SimulatedTransport endpoint) {
+        mEndpoints.remove(endpoint.getLocalAddress());
+    }
+
+    void schedule(Event event, long time) {
+        event.mTime = time;
+        event.mSeq = mNextSeq++;
+        mEvents.add(event);
+    }
+
+    void send(SimulatedTransport from, Message msg) {
+        mNumSent++;
+        if(!from.isOnline() || (mLossRate > 0 && mRandom.nextDouble() < mLossRate)) {
+            mNumDropped++;
+            mMessagePool.release(msg);
+            return;
+        }
+
+        final InetSocketAddress to = msg.getRemoteSocketAddress();
+        msg.setRemoteSocketAddress(from.getLocalAddress());
+        long latency = mMinLatency;
+        if(mMaxLatency > mMinLatency) {
+            latency += (long) (mRandom.nextDouble() * (mMaxLatency - mMinLatency + 1));
+        }
+        schedule(new Delivery(msg, to), mClock.currentTimeMillis() + latency);
+    }
+
+    private void step() {
+        Event event = mEvents.poll();
+        mClock.set(event.mTime);
+        try {
+            event.run();
+        } catch (RuntimeException e) {
+            logger.error("error in simulated event", e);
+        }
+    }
+
+    /**
+     * Process every event due at or before {@code time} and then set the clock to it.
+     */
+    public void runUntil(long time) {
+        while(!mEvents.isEmpty() && mEvents.peek().mTime <= time) {
+            step();
+        }
+        if(mClock.currentTimeMillis() < time) {
+            mClock.set(time);
+        }
+    }
+
+    public void runFor(long millis) {
+        runUntil(mClock.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Process events until {@code future} is done or {@code maxMillis} of virtual
+     * time have passed.
+     * @return true if the future is done
+     */
+    public boolean runUntilDone(Future<?> future, long maxMillis) {
+        final long deadline = mClock.currentTimeMillis() + maxMillis;
+        while(!future.isDone() && !mEvents.isEmpty() && mEvents.peek().mTime <= deadline) {
+            step();
+        }
+        return future.isDone();
+    }
+}
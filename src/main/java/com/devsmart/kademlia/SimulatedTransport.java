@@ -0,0 +1,144 @@
+package com.devsmart.kademlia;
+
+
+import java.net.InetSocketAddress;
+
+/**
+ * An endpoint on a {@link SimulatedNetwork}. Its event loop is the network's event
+ * queue, so its tasks, ticks and deliveries run on the thread running the network.
+ * Taking an endpoint offline drops everything it sends and everything sent to it
+ * while its node keeps running, like a host that has lost its link.
+ */
+public class SimulatedTransport implements Transport {
+
+    private final SimulatedNetwork mNetwork;
+    private final InetSocketAddress mAddress;
+    private Receiver mReceiver;
+    private boolean mRunning;
+    private boolean mShutdown;
+    private boolean mOnline = true;
+
+    private final SimulatedNetwork.Event mTick = new SimulatedNetwork.Event() {
+        @Override
+        void run() {
+            if(mRunning) {
+                final long now = mNetwork.getClock().currentTimeMillis();
+                long delay = Math.max(1, mReceiver.onTick(now));
+                mNetwork.schedule(this, now + delay);
+            }
+        }
+    };
+
+    private class Task extends SimulatedNetwork.Event {
+        final Runnable mTask;
+
+        Task(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        void run() {
+            if(!mShutdown) {
+                mTask.run();
+            }
+        }
+    }
+
+    SimulatedTransport(SimulatedNetwork network, InetSocketAddress address) {
+        mNetwork = network;
+        mAddress = address;
+    }
+
+    public boolean isOnline() {
+        return mOnline && mRunning;
+    }
+
+    public void setOnline(boolean online) {
+        mOnline = online;
+    }
+
+    void deliver(Message msg) {
+        mReceiver.onReceive(msg);
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        if(mRunning || mShutdown) {
+            return;
+        }
+        mReceiver = receiver;
+        mRunning = true;
+        mNetwork.register(this);
+        mNetwork.schedule(mTick, mNetwork.getClock().currentTimeMillis());
+    }
+
+    @Override
+    public void shutdown() {
+        mRunning = false;
+        mShutdown = true;
+        mNetwork.unregister(this);
+    }
+
+    @Override
+    public void send(Message msg) {
+        mNetwork.send(this, msg);
+    }
+
+    /**
+     * Messages go straight onto the simulated network, so the priority is ignored and
+     * nothing is ever queued.
+     */
+    @Override
+    public boolean send(Message msg, int priority) {
+        send(msg);
+        return true;
+    }
+
+    @Override
+    public int getSendQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public int getFullestSendQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getNumSendDropped() {
+        return 0;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mNetwork.schedule(new Task(task), mNetwork.getClock().currentTimeMillis());
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public MessagePool getMessagePool() {
+        return mNetwork.getMessagePool();
+    }
+
+    /**
+     * Simulated nodes only hear from each other.
+     */
+    @Override
+    public boolean isExposed() {
+        return false;
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return true;
+    }
+
+    @Override
+    public Clock getClock() {
+        return mNetwork.getClock();
+    }
+}
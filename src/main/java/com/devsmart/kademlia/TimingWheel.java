@@ -0,0 +1,150 @@
+package com.devsmart.kademlia;
+
+
+/**
+ * A hashed timing wheel. Timeouts are hashed into slots by their expiry tick and kept
+ * in intrusive doubly linked lists, so scheduling and cancelling are O(1) and do not
+ * allocate. The wheel is not thread safe; it is meant to be driven by a single thread
+ * calling {@link #advance(long)}.
+ */
+class TimingWheel {
+
+    private static final int IDLE = -1;
+    private static final int EXPIRING = -2;
+
+    static abstract class Timeout {
+        private long mExpireTick;
+        private int mSlot = IDLE;
+        private Timeout mPrev;
+        private Timeout mNext;
+        private Timeout mNextExpired;
+
+        public boolean isScheduled() {
+            return mSlot != IDLE;
+        }
+
+        protected abstract void onExpired(long now);
+    }
+
+    private final long mTickMillis;
+    private final Timeout[] mSlots;
+    private final int mMask;
+    private long mTick;
+    private int mSize;
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param numSlots number of slots, rounded up to a power of two
+     * @param now the current time in milliseconds
+     */
+    TimingWheel(long tickMillis, int numSlots, long now) {
+        int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+        mTickMillis = tickMillis;
+        mSlots = new Timeout[size];
+        mMask = size - 1;
+        mTick = now / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Schedule (or reschedule) {@code timeout} to expire at {@code deadline} milliseconds.
+     * Deadlines in the past expire on the next tick.
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        cancel(timeout);
+
+        long tick = Math.max(mTick + 1, (deadline + mTickMillis - 1) / mTickMillis);
+        int slot = (int) (tick & mMask);
+        timeout.mExpireTick = tick;
+        timeout.mSlot = slot;
+        timeout.mPrev = null;
+        timeout.mNext = mSlots[slot];
+        if(timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout;
+        }
+        mSlots[slot] = timeout;
+        mSize++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if(timeout.mSlot == EXPIRING) {
+            //unlinked already and waiting to fire in advance()
+            timeout.mSlot = IDLE;
+            return;
+        }
+        if(timeout.mSlot == IDLE) {
+            return;
+        }
+
+        if(timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mSlots[timeout.mSlot] = timeout.mNext;
+        }
+        if(timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mSlot = IDLE;
+        mSize--;
+    }
+
+    /**
+     * Expire every timeout whose deadline is at or before {@code now}.
+     */
+    public void advance(long now) {
+        final long targetTick = now / mTickMillis;
+        if(targetTick - mTick > mSlots.length) {
+            //every slot gets visited once; older deadlines are caught by the expiry check
+            mTick = targetTick - mSlots.length;
+        }
+
+        while(mTick < targetTick) {
+            mTick++;
+
+            //unlink everything due first so callbacks are free to cancel or reschedule any timeout
+            Timeout expired = null;
+            Timeout last = null;
+            Timeout t = mSlots[(int) (mTick & mMask)];
+            while(t != null) {
+                Timeout next = t.mNext;
+                if(t.mExpireTick <= mTick) {
+                    cancel(t);
+                    t.mSlot = EXPIRING;
+                    if(last == null) {
+                        expired = t;
+                    } else {
+                        last.mNextExpired = t;
+                    }
+                    last = t;
+                }
+                t = next;
+            }
+
+            while(expired != null) {
+                t = expired;
+                expired = t.mNextExpired;
+                t.mNextExpired = null;
+                if(t.mSlot == EXPIRING) {
+                    t.mSlot = IDLE;
+                    t.onExpired(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds from {@code now} until the next tick
+     */
+    public long getTimeToNextTick(long now) {
+        return (mTick + 1) * mTickMillis - now;
+    }
+}
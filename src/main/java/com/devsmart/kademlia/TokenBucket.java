@@ -0,0 +1,58 @@
+package com.devsmart.kademlia;
+
+
+/**
+ * Rate limits events to a steady rate while allowing short bursts. Tokens accrue at
+ * {@code ratePerSecond} up to {@code burst} and each event spends one.
+ *
+ * Not thread safe.
+ */
+class TokenBucket {
+
+    private final double mRatePerMilli;
+    private final double mBurst;
+    private double mTokens;
+    private long mLastRefill;
+
+    TokenBucket(double ratePerSecond, int burst, long now) {
+        mRatePerMilli = ratePerSecond / 1000;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = now;
+    }
+
+    private void refill(long now) {
+        if(now > mLastRefill) {
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRatePerMilli);
+            mLastRefill = now;
+        }
+    }
+
+    /**
+     * Spend a token if one is available.
+     */
+    public boolean tryAcquire(long now) {
+        refill(now);
+        if(mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return milliseconds until a token will be available, 0 if one is available now
+     */
+    public long getWaitMillis(long now) {
+        refill(now);
+        if(mTokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) / mRatePerMilli);
+    }
+
+    public double getTokens(long now) {
+        refill(now);
+        return mTokens;
+    }
+}
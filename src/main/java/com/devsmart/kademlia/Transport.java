@@ -0,0 +1,102 @@
+package com.devsmart.kademlia;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Moves datagrams for a {@link Node} and runs its event loop. Timer ticks and every
+ * task passed to {@link #execute(Runnable)} run on that loop, so node state touched
+ * only there needs no locking. Datagrams are normally received on the loop as well,
+ * though a sharded {@link UdpTransport} may call {@link Receiver#onReceive(Message)}
+ * from several threads at once. {@link UdpTransport} is the real network;
+ * {@link SimulatedNetwork} runs many nodes in one JVM on a virtual clock.
+ */
+public interface Transport {
+
+    int PRIORITY_NORMAL = 0;
+
+    /**
+     * Traffic that can be dropped first when the send queue backs up, such as keep-alives.
+     */
+    int PRIORITY_LOW = 1;
+
+    interface Receiver {
+
+        /**
+         * Handle an inbound datagram. {@code msg} and its buffer are only valid for the
+         * duration of the call.
+         */
+        void onReceive(Message msg);
+
+        /**
+         * Run timers due at {@code now}.
+         * @return milliseconds until the receiver next needs to be ticked
+         */
+        long onTick(long now);
+    }
+
+    void start(Receiver receiver) throws IOException;
+
+    void shutdown();
+
+    /**
+     * Queue a message to be sent by the event loop. The message must already have its
+     * remote address set and ownership passes to the transport; messages from
+     * {@link #getMessagePool()} are released back to the pool once written.
+     */
+    void send(Message msg);
+
+    /**
+     * Queue a message with the given priority. A message that does not fit in the send
+     * queue is dropped.
+     * @param priority {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}
+     * @return true if the message was queued, false if it was dropped
+     */
+    boolean send(Message msg, int priority);
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    int getSendQueueDepth();
+
+    /**
+     * @return the number of messages waiting in the fullest send queue; the same as
+     * {@link #getSendQueueDepth()} for a transport with a single queue
+     */
+    int getFullestSendQueueDepth();
+
+    /**
+     * @return the number of messages dropped because the send queue was full or the
+     * datagram could not be sent
+     */
+    long getNumSendDropped();
+
+    /**
+     * Run {@code task} on the event loop.
+     */
+    void execute(Runnable task);
+
+    InetSocketAddress getLocalAddress() throws IOException;
+
+    /**
+     * @return true if untrusted peers on a real network can reach this transport, so a
+     * node on it should run {@link AdmissionControl} unless told otherwise
+     */
+    boolean isExposed();
+
+    /**
+     * The pool to acquire outbound messages from on the calling thread.
+     */
+    MessagePool getMessagePool();
+
+    /**
+     * @return true if the calling thread is the event loop
+     */
+    boolean inEventLoop();
+
+    /**
+     * The clock the event loop runs on.
+     */
+    Clock getClock();
+}
@@ -0,0 +1,470 @@
+package com.devsmart.kademlia;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link Transport} over non-blocking {@link DatagramChannel}s. Each shard is an
+ * event loop thread with its own channel, direct receive buffer and message pool; it
+ * receives datagrams in batches and hands them to the receiver in place, then writes
+ * the messages queued on it. Outbound messages wait in a bounded two-priority
+ * {@link OutboundQueue} per shard and are paced by a token bucket, so a burst of
+ * requests cannot overflow the kernel's send buffer. With more than one shard every
+ * channel is bound to the same port with SO_REUSEPORT and the kernel spreads inbound
+ * flows across them, so the receiver must tolerate concurrent
+ * {@link Receiver#onReceive(Message)} calls. Tasks
+ * and timer ticks only ever run on shard 0, which is the transport's event loop. The
+ * loop's clock is a {@link CachedClock} that only shard 0 updates; the other shards
+ * pace their sends by the source clock.
+ */
+public class UdpTransport implements Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpTransport.class);
+
+    private static final int MAX_RECEIVE_BATCH = 64;
+    private static final int MAX_SEND_BATCH = 64;
+    public static final int DEFAULT_SEND_QUEUE_CAPACITY = 4096;
+    public static final double DEFAULT_SEND_RATE = 10000;
+    public static final int DEFAULT_SEND_BURST = 512;
+
+    /**
+     * SO_REUSEPORT is only a standard option from Java 9 on.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static boolean isReusePortSupported() {
+        if(SO_REUSEPORT == null) {
+            return false;
+        }
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                return channel.supportedOptions().contains(SO_REUSEPORT);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private class Shard implements Runnable {
+        final int mIndex;
+        final MessagePool mMessagePool;
+        final OutboundQueue mOutbound = new OutboundQueue(DEFAULT_SEND_QUEUE_CAPACITY);
+        final AtomicBoolean mWakeupPending = new AtomicBoolean();
+        final Message mReceiveMessage = new Message(ByteBuffer.allocateDirect(Message.MAX_SIZE));
+        DatagramChannel mChannel;
+        volatile Selector mSelector;
+        SelectionKey mSelectionKey;
+        Thread mThread;
+        TokenBucket mPacer;
+        Message mPending;
+        long mPacedUntil;
+
+        Shard(int index, MessagePool messagePool) {
+            mIndex = index;
+            mMessagePool = messagePool;
+        }
+
+        void open(InetSocketAddress bindAddress) throws IOException {
+            mSelector = Selector.open();
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            if(mShards.length > 1) {
+                mChannel.setOption(SO_REUSEPORT, true);
+            }
+            mChannel.bind(bindAddress);
+            mSelectionKey = mChannel.register(mSelector, SelectionKey.OP_READ);
+        }
+
+        void close() {
+            try {
+                mChannel.close();
+                mSelector.close();
+            } catch (IOException e) {
+                logger.warn("error closing channel", e);
+            }
+            if(mPending != null) {
+                release(mPending);
+                mPending = null;
+            }
+            Message msg;
+            while((msg = mOutbound.poll()) != null) {
+                release(msg);
+            }
+        }
+
+        /**
+         * Read the time for this shard. Only shard 0 writes the shared cached clock, so it
+         * never steps back for its readers; the others read the source clock directly.
+         */
+        long updateClock() {
+            return mIndex == 0 ? mClock.update() : mClock.getSource().currentTimeMillis();
+        }
+
+        void wakeup() {
+            final Selector selector = mSelector;
+            if(selector != null && Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            final boolean main = mIndex == 0;
+            while(mRunning) {
+                try {
+                    long timeout = 0;
+                    if(!main) {
+                        timeout = Long.MAX_VALUE;
+                    } else if(mTasks.isEmpty()) {
+                        timeout = mNextTick - mClock.update();
+                    }
+                    if(mPacedUntil != 0) {
+                        timeout = Math.min(timeout, mPacedUntil - updateClock());
+                    }
+                    if(timeout == Long.MAX_VALUE) {
+                        mSelector.select();
+                    } else if(timeout > 0) {
+                        mSelector.select(timeout);
+                    } else {
+                        mSelector.selectNow();
+                    }
+                    mWakeupPending.set(false);
+                    mSelector.selectedKeys().clear();
+
+                    if(main) {
+                        final long now = mClock.update();
+                        receive();
+                        runTasks();
+                        mNextTick = now + mReceiver.onTick(now);
+                    } else {
+                        receive();
+                    }
+                    flush();
+                } catch (Exception e) {
+                    if(mRunning) {
+                        logger.error("error in event loop", e);
+                    }
+                }
+            }
+        }
+
+        private void receive() throws IOException {
+            for(int i=0;i<MAX_RECEIVE_BATCH;i++) {
+                Message msg = mReceiveMessage;
+                msg.prepareReceive();
+                SocketAddress from = mChannel.receive(msg.mBuffer);
+                if(from == null) {
+                    break;
+                }
+                msg.mBuffer.flip();
+                msg.setRemoteSocketAddress((InetSocketAddress) from);
+                mReceiver.onReceive(msg);
+            }
+        }
+
+        private void flush() {
+            final long now = updateClock();
+            mPacedUntil = 0;
+            int sent = 0;
+            while(true) {
+                Message msg = mPending;
+                mPending = null;
+                if(msg == null && (msg = mOutbound.poll()) == null) {
+                    break;
+                }
+
+                if(sent >= MAX_SEND_BATCH) {
+                    //give the other channels a turn; pick up where we left off once writable
+                    mPending = msg;
+                    mSelectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                final long wait = mPacer.getWaitMillis(now);
+                if(wait > 0) {
+                    //over the send rate; wake up when the next token is due
+                    mPending = msg;
+                    mPacedUntil = now + wait;
+                    break;
+                }
+                final int written;
+                try {
+                    written = mChannel.send(msg.mBuffer, msg.getRemoteSocketAddress());
+                } catch (IOException | IllegalArgumentException e) {
+                    //unreachable, unresolved or wrong family; one bad destination must not hold up the rest of the queue
+                    logger.debug("error sending to {}: {}", msg.getRemoteSocketAddress(), e.getMessage());
+                    mOutbound.onDropped();
+                    release(msg);
+                    continue;
+                }
+                if(written == 0) {
+                    //kernel buffer is full; wait until the channel is writable again
+                    mPending = msg;
+                    mSelectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                //only spend a token on a datagram that actually went out
+                mPacer.tryAcquire(now);
+                sent++;
+                release(msg);
+            }
+            mSelectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private final InetSocketAddress mBindAddress;
+    private final CachedClock mClock;
+    private final Shard[] mShards;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private Receiver mReceiver;
+    private volatile boolean mRunning;
+    private long mNextTick;
+    private double mSendRate = DEFAULT_SEND_RATE;
+    private int mSendBurst = DEFAULT_SEND_BURST;
+
+    public UdpTransport(InetSocketAddress bindAddress) {
+        this(bindAddress, new MessagePool(true));
+    }
+
+    public UdpTransport(InetSocketAddress bindAddress, MessagePool messagePool) {
+        this(bindAddress, messagePool, Clock.SYSTEM);
+    }
+
+    public UdpTransport(InetSocketAddress bindAddress, MessagePool messagePool, Clock clock) {
+        this(bindAddress, messagePool, clock, 1);
+    }
+
+    /**
+     * @param messagePool the pool used by shard 0; the other shards get pools of their own
+     * @param numShards number of receive loops bound to the same port. More than one
+     *                  requires SO_REUSEPORT, see {@link #isReusePortSupported()}.
+     */
+    public UdpTransport(InetSocketAddress bindAddress, MessagePool messagePool, Clock clock, int numShards) {
+        if(numShards < 1) {
+            throw new IllegalArgumentException("numShards must be at least 1: " + numShards);
+        }
+        if(numShards > 1 && !isReusePortSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+        }
+        mBindAddress = bindAddress;
+        mClock = new CachedClock(clock);
+        mShards = new Shard[numShards];
+        mShards[0] = new Shard(0, messagePool);
+        for(int i=1;i<numShards;i++) {
+            mShards[i] = new Shard(i, new MessagePool(messagePool.isDirect()));
+        }
+    }
+
+    public int getNumShards() {
+        return mShards.length;
+    }
+
+    /**
+     * Limit each shard to sending {@code packetsPerSecond} on average, with bursts of up
+     * to {@code burst} packets. Must be called before {@link #start(Receiver)}.
+     */
+    public synchronized void setSendRate(double packetsPerSecond, int burst) {
+        if(mRunning) {
+            throw new IllegalStateException("transport already started");
+        }
+        mSendRate = packetsPerSecond;
+        mSendBurst = burst;
+    }
+
+    @Override
+    public int getSendQueueDepth() {
+        int retval = 0;
+        for(Shard shard : mShards) {
+            retval += shard.mOutbound.size();
+        }
+        return retval;
+    }
+
+    @Override
+    public int getFullestSendQueueDepth() {
+        int retval = 0;
+        for(Shard shard : mShards) {
+            retval = Math.max(retval, shard.mOutbound.size());
+        }
+        return retval;
+    }
+
+    @Override
+    public long getNumSendDropped() {
+        long retval = 0;
+        for(Shard shard : mShards) {
+            retval += shard.mOutbound.getNumDropped();
+        }
+        return retval;
+    }
+
+    /**
+     * @return the shard whose loop is the calling thread, or shard 0 for any other thread
+     */
+    private Shard currentShard() {
+        final Thread thread = Thread.currentThread();
+        for(int i=1;i<mShards.length;i++) {
+            if(mShards[i].mThread == thread) {
+                return mShards[i];
+            }
+        }
+        return mShards[0];
+    }
+
+    private static void release(Message msg) {
+        if(msg.mPool != null) {
+            msg.mPool.release(msg);
+        }
+    }
+
+    /**
+     * The calling shard's pool, or shard 0's pool when called from any other thread.
+     */
+    @Override
+    public MessagePool getMessagePool() {
+        return currentShard().mMessagePool;
+    }
+
+    @Override
+    public Clock getClock() {
+        return mClock;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) mShards[0].mChannel.getLocalAddress();
+    }
+
+    @Override
+    public boolean isExposed() {
+        return true;
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mShards[0].mThread;
+    }
+
+    @Override
+    public synchronized void start(Receiver receiver) throws IOException {
+        if(mRunning) {
+            return;
+        }
+
+        mReceiver = receiver;
+        try {
+            mShards[0].open(mBindAddress);
+            //with an ephemeral bind address the other shards join the port shard 0 was given
+            InetSocketAddress address = (InetSocketAddress) mShards[0].mChannel.getLocalAddress();
+            for(int i=1;i<mShards.length;i++) {
+                mShards[i].open(address);
+            }
+        } catch (IOException e) {
+            for(Shard shard : mShards) {
+                if(shard.mChannel != null) {
+                    shard.close();
+                }
+            }
+            throw e;
+        }
+        mNextTick = mClock.update();
+        for(Shard shard : mShards) {
+            shard.mPacer = new TokenBucket(mSendRate, mSendBurst, mNextTick);
+        }
+
+        mRunning = true;
+        for(Shard shard : mShards) {
+            shard.mThread = new Thread(shard, "Kademlia " + mShards[0].mChannel.getLocalAddress()
+                    + (mShards.length > 1 ? " shard " + shard.mIndex : ""));
+        }
+        for(Shard shard : mShards) {
+            shard.mThread.start();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if(!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        for(Shard shard : mShards) {
+            shard.mSelector.wakeup();
+        }
+        try {
+            for(Shard shard : mShards) {
+                shard.mThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTasks.clear();
+
+        for(Shard shard : mShards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Queue a message on the calling shard, or on shard 0 when called from any other thread.
+     */
+    @Override
+    public void send(Message msg) {
+        send(msg, PRIORITY_NORMAL);
+    }
+
+    @Override
+    public boolean send(Message msg, int priority) {
+        Shard shard = currentShard();
+        if(shard.mOutbound.offer(msg, priority)) {
+            shard.wakeup();
+            return true;
+        }
+        logger.debug("send queue full, dropping message to {}", msg.getRemoteSocketAddress());
+        release(msg);
+        return false;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        mShards[0].wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("error running task", e);
+            }
+        }
+    }
+}
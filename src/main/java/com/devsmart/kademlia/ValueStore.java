@@ -0,0 +1,316 @@
+package com.devsmart.kademlia;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Values stored on this node by STORE requests, keyed by {@link ID}. Records live
+ * off-heap in a single direct buffer used as a circular log, so millions of small
+ * values cost no GC work; a primitive open-addressing index maps key words to record
+ * offsets. When the log is full the oldest records are evicted first. Each record
+ * carries an expiry time and is dropped once it has passed, lazily on read and in
+ * bulk by {@link #purgeExpired(long)}. Storing a key again appends a new record and
+ * the old one is reclaimed when the log wraps around to it.
+ *
+ * <pre>
+ *   Record: length (4) | expires (8) | key (20) | value (length)
+ * </pre>
+ *
+ * The log is only allocated by the first store. All methods are synchronized.
+ */
+public class ValueStore {
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * The largest value that can be stored, bounded by what a single STORE or FIND_VALUE
+     * datagram can carry.
+     */
+    public static final int MAX_VALUE_LENGTH = Message.StoreMessage.MAX_VALUE_LENGTH;
+
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + ID.NUM_BYTES;
+    private static final int WRAP = -1;
+    private static final int EMPTY = -1;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final int mCapacity;
+    private ByteBuffer mLog;
+    private int mHead;
+    private int mTail;
+    private int mUsed;
+
+    private long[] mHighs;
+    private long[] mMids;
+    private int[] mLows;
+    private int[] mOffsets;
+    private int mSize;
+
+    public ValueStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of bytes of off-heap storage, including a
+     *                 {@value #RECORD_HEADER_LENGTH} byte header per record
+     */
+    public ValueStore(int capacity) {
+        mCapacity = capacity;
+        allocateIndex(INITIAL_INDEX_CAPACITY);
+    }
+
+    private void allocateIndex(int capacity) {
+        mHighs = new long[capacity];
+        mMids = new long[capacity];
+        mLows = new int[capacity];
+        mOffsets = new int[capacity];
+        Arrays.fill(mOffsets, EMPTY);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int getUsedBytes() {
+        return mUsed;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    private static int hash(long high, long mid, int low) {
+        long h = high ^ (mid * 0x9E3779B97F4A7C15L) ^ low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private int findSlot(long high, long mid, int low) {
+        final int mask = mOffsets.length - 1;
+        int i = hash(high, mid, low) & mask;
+        while(mOffsets[i] != EMPTY) {
+            if(mHighs[i] == high && mMids[i] == mid && mLows[i] == low) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    private void indexPut(long high, long mid, int low, int offset) {
+        int slot = findSlot(high, mid, low);
+        if(slot >= 0) {
+            mOffsets[slot] = offset;
+            return;
+        }
+        if(2 * (mSize + 1) > mOffsets.length) {
+            resizeIndex();
+            slot = findSlot(high, mid, low);
+        }
+        slot = -1 - slot;
+        mHighs[slot] = high;
+        mMids[slot] = mid;
+        mLows[slot] = low;
+        mOffsets[slot] = offset;
+        mSize++;
+    }
+
+    private void resizeIndex() {
+        final long[] highs = mHighs;
+        final long[] mids = mMids;
+        final int[] lows = mLows;
+        final int[] offsets = mOffsets;
+        allocateIndex(offsets.length * 2);
+        mSize = 0;
+        for(int i=0;i<offsets.length;i++) {
+            if(offsets[i] != EMPTY) {
+                indexPut(highs[i], mids[i], lows[i], offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Remove the index entry in {@code slot}, shifting back later entries of the same
+     * probe run so lookups never stop early.
+     */
+    private void indexRemove(int slot) {
+        final int mask = mOffsets.length - 1;
+        int hole = slot;
+        int i = (slot + 1) & mask;
+        while(mOffsets[i] != EMPTY) {
+            int home = hash(mHighs[i], mMids[i], mLows[i]) & mask;
+            //move the entry back if the hole lies cyclically between its home slot and i
+            if(((i - home) & mask) >= ((i - hole) & mask)) {
+                mHighs[hole] = mHighs[i];
+                mMids[hole] = mMids[i];
+                mLows[hole] = mLows[i];
+                mOffsets[hole] = mOffsets[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        mOffsets[hole] = EMPTY;
+        mSize--;
+    }
+
+    /**
+     * Store {@code length} bytes of {@code src} starting at the absolute index
+     * {@code offset} under {@code key}, replacing any previous value.
+     * @return false if the value is longer than {@link #MAX_VALUE_LENGTH} or can never
+     * fit in the store
+     */
+    public synchronized boolean put(ID key, ByteBuffer src, int offset, int length, long expires) {
+        final int recordLength = RECORD_HEADER_LENGTH + length;
+        if(length < 0 || length > MAX_VALUE_LENGTH || recordLength > mCapacity) {
+            return false;
+        }
+        if(mLog == null) {
+            mLog = ByteBuffer.allocateDirect(mCapacity);
+        }
+
+        final int pos = allocate(recordLength);
+        mLog.putInt(pos, length);
+        mLog.putLong(pos + 4, expires);
+        key.write(mLog, pos + 12);
+        for(int i=0;i<length;i++) {
+            mLog.put(pos + RECORD_HEADER_LENGTH + i, src.get(offset + i));
+        }
+        indexPut(key.getHigh(), key.getMid(), key.getLow(), pos);
+        return true;
+    }
+
+    public boolean put(ID key, byte[] value, long expires) {
+        return put(key, ByteBuffer.wrap(value), 0, value.length, expires);
+    }
+
+    /**
+     * Reserve {@code length} contiguous bytes at the head of the log, evicting the
+     * oldest records as needed.
+     */
+    private int allocate(int length) {
+        while(true) {
+            if(mUsed == 0) {
+                mHead = 0;
+                mTail = 0;
+            }
+            if(mUsed == 0 || mTail < mHead) {
+                //free space is [head, capacity) followed by [0, tail)
+                if(mCapacity - mHead >= length) {
+                    break;
+                }
+                final int waste = mCapacity - mHead;
+                if(waste >= 4) {
+                    mLog.putInt(mHead, WRAP);
+                }
+                mUsed += waste;
+                mHead = 0;
+            } else if(mTail - mHead >= length) {
+                break;
+            } else {
+                evictTail();
+            }
+        }
+        final int retval = mHead;
+        mHead += length;
+        mUsed += length;
+        return retval;
+    }
+
+    private void evictTail() {
+        if(mCapacity - mTail < 4 || mLog.getInt(mTail) == WRAP) {
+            mUsed -= mCapacity - mTail;
+            mTail = 0;
+            return;
+        }
+
+        final int length = mLog.getInt(mTail);
+        final long high = ID.readHigh(mLog, mTail + 12);
+        final long mid = ID.readMid(mLog, mTail + 12);
+        final int low = ID.readLow(mLog, mTail + 12);
+        final int slot = findSlot(high, mid, low);
+        if(slot >= 0 && mOffsets[slot] == mTail) {
+            indexRemove(slot);
+        }
+        mTail += RECORD_HEADER_LENGTH + length;
+        mUsed -= RECORD_HEADER_LENGTH + length;
+    }
+
+    /**
+     * Copy the value stored under the key words into {@code dst} at the absolute index
+     * {@code offset}.
+     * @return the length of the value, or -1 if there is no live value for the key
+     */
+    public synchronized int get(long high, long mid, int low, long now, ByteBuffer dst, int offset) {
+        final int slot = findSlot(high, mid, low);
+        if(slot < 0) {
+            return -1;
+        }
+        final int pos = mOffsets[slot];
+        if(mLog.getLong(pos + 4) <= now) {
+            indexRemove(slot);
+            return -1;
+        }
+        final int length = mLog.getInt(pos);
+        for(int i=0;i<length;i++) {
+            dst.put(offset + i, mLog.get(pos + RECORD_HEADER_LENGTH + i));
+        }
+        return length;
+    }
+
+    /**
+     * @return a copy of the value stored under {@code key}, or null if there is none
+     */
+    public synchronized byte[] get(ID key, long now) {
+        final int slot = findSlot(key.getHigh(), key.getMid(), key.getLow());
+        if(slot < 0) {
+            return null;
+        }
+        byte[] retval = new byte[mLog.getInt(mOffsets[slot])];
+        if(get(key.getHigh(), key.getMid(), key.getLow(), now, ByteBuffer.wrap(retval), 0) < 0) {
+            return null;
+        }
+        return retval;
+    }
+
+    public synchronized boolean remove(ID key) {
+        final int slot = findSlot(key.getHigh(), key.getMid(), key.getLow());
+        if(slot < 0) {
+            return false;
+        }
+        indexRemove(slot);
+        return true;
+    }
+
+    /**
+     * Drop every value that has expired by {@code now}. Their space is reclaimed as the
+     * log wraps around, or right away if they are the oldest records.
+     * @return the number of values dropped
+     */
+    public synchronized int purgeExpired(long now) {
+        int retval = 0;
+        for(int i=0;i<mOffsets.length;) {
+            if(mOffsets[i] != EMPTY && mLog.getLong(mOffsets[i] + 4) <= now) {
+                //the backward shift may move another entry into slot i
+                indexRemove(i);
+                retval++;
+            } else {
+                i++;
+            }
+        }
+
+        //reclaim dead records at the tail
+        while(mUsed > 0 && !isLive(mTail)) {
+            evictTail();
+        }
+        return retval;
+    }
+
+    private boolean isLive(int pos) {
+        if(mCapacity - pos < 4 || mLog.getInt(pos) == WRAP) {
+            return false;
+        }
+        final int slot = findSlot(ID.readHigh(mLog, pos + 12), ID.readMid(mLog, pos + 12), ID.readLow(mLog, pos + 12));
+        return slot >= 0 && mOffsets[slot] == pos;
+    }
+}
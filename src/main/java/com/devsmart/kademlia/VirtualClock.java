@@ -0,0 +1,32 @@
+package com.devsmart.kademlia;
+
+
+/**
+ * A clock that only moves when told to. Used by tests and simulations.
+ */
+public class VirtualClock implements Clock {
+
+    private volatile long mNow;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long now) {
+        mNow = now;
+    }
+
+    public void set(long now) {
+        mNow = now;
+    }
+
+    public long advance(long millis) {
+        mNow += millis;
+        return mNow;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+}
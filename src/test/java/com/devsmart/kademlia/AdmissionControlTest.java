@@ -0,0 +1,46 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void testPerSourceLimit() {
+        AdmissionControl admission = new AdmissionControl(100, 10, 1000000, 1000000, 100);
+        for(int i=0;i<10;i++) {
+            assertTrue(admission.admit(1, 1, 0, 0));
+        }
+        assertFalse(admission.admit(1, 1, 0, 0));
+
+        //other sources are unaffected
+        for(int i=2;i<1000;i++) {
+            assertTrue(admission.admit(i, 1, 0, 0));
+        }
+
+        //one token every 10ms
+        assertFalse(admission.admit(1, 1, 9, 0));
+        assertTrue(admission.admit(1, 1, 10, 0));
+        assertFalse(admission.admit(1, 1, 10, 0));
+
+        //costlier requests run out sooner
+        for(int i=0;i<5;i++) {
+            assertTrue(admission.admit(5000, 2, 0, 0));
+        }
+        assertFalse(admission.admit(5000, 2, 0, 0));
+    }
+
+    @Test
+    public void testTotalLimitAndQueueDepth() {
+        AdmissionControl admission = new AdmissionControl(100, 10, 1000, 50, 100);
+        for(int i=0;i<50;i++) {
+            assertTrue(admission.admit(i, 1, 0, 0));
+        }
+        assertFalse(admission.admit(50, 1, 0, 0));
+        assertTrue(admission.admit(50, 1, 1000, 0));
+
+        assertFalse(admission.admit(51, 1, 1000, 101));
+    }
+}
@@ -3,6 +3,8 @@ package com.devsmart.kademlia;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -77,4 +79,58 @@ public class IDTests {
         assertEquals(2, sharedBits);
 
     }
+
+    @Test
+    public void testCompareDistanceHighBit() {
+        ID c = createShortId(0b00000000);
+        ID a = createShortId(0b10000000);
+        ID b = createShortId(0b01111111);
+
+        assertEquals(1, ID.compareDistance(a, b, c));
+        assertEquals(-1, ID.compareDistance(b, a, c));
+    }
+
+    @Test
+    public void testCompareDistanceMatchesIntDistance() {
+        Random r = new Random(1);
+        byte[] data = new byte[ID.NUM_BYTES];
+        for(int i=0;i<1000;i++) {
+            r.nextBytes(data);
+            ID a = new ID(data, 0);
+            r.nextBytes(data);
+            ID b = new ID(data, 0);
+            r.nextBytes(data);
+            ID c = new ID(data, 0);
+
+            int expected = a.getIntDistance(c).compareTo(b.getIntDistance(c));
+            assertEquals(expected, ID.compareDistance(a, b, c));
+        }
+    }
+
+    @Test
+    public void testNumSharedPrefixBitsLowWords() {
+        byte[] data = new byte[ID.NUM_BYTES];
+        ID a = new ID(data, 0);
+
+        data[10] = 0b00100000;
+        assertEquals(82, a.getNumSharedPrefixBits(new ID(data, 0)));
+
+        data[10] = 0;
+        data[19] = 0b00000001;
+        assertEquals(159, a.getNumSharedPrefixBits(new ID(data, 0)));
+    }
+
+    @Test
+    public void testByteBufferRoundTrip() {
+        byte[] data = new byte[ID.NUM_BYTES];
+        new Random(2).nextBytes(data);
+        ID a = new ID(data, 0);
+
+        ByteBuffer buf = ByteBuffer.allocate(ID.NUM_BYTES + 3);
+        a.write(buf, 3);
+        ID b = ID.read(buf, 3);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertArrayEquals(data, b.getBytes());
+    }
 }
@@ -0,0 +1,40 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        for(long v=0;v<100000;v++) {
+            int bucket = LatencyHistogram.getBucket(v);
+            assertTrue(v <= LatencyHistogram.getBucketMax(bucket));
+            if(bucket > 0) {
+                assertTrue(v > LatencyHistogram.getBucketMax(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketMax(LatencyHistogram.getBucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for(int i=1;i<=1000;i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+}
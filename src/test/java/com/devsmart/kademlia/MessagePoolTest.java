@@ -0,0 +1,82 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class MessagePoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        MessagePool pool = new MessagePool(false);
+        assertEquals(32, pool.acquire(1).mBuffer.capacity());
+        assertEquals(32, pool.acquire(32).mBuffer.capacity());
+        assertEquals(128, pool.acquire(33).mBuffer.capacity());
+        assertEquals(128, pool.acquire(128).mBuffer.capacity());
+        assertEquals(256, pool.acquire(129).mBuffer.capacity());
+        assertEquals(256, pool.acquire(256).mBuffer.capacity());
+        assertEquals(2048, pool.acquire(257).mBuffer.capacity());
+        assertEquals(2048, pool.acquire(2048).mBuffer.capacity());
+        assertEquals(Message.MAX_SIZE, pool.acquire(2049).mBuffer.capacity());
+        assertEquals(Message.MAX_SIZE, pool.acquire(Message.MAX_SIZE).mBuffer.capacity());
+
+        //every payload fits the class it is acquired for
+        assertTrue(pool.acquire(Message.PingMessage.MAX_LENGTH).mBuffer.capacity() >= Message.PingMessage.MAX_LENGTH);
+        assertTrue(pool.acquire(Message.FindValueMessage.MAX_RESPONSE_LENGTH).mBuffer.capacity() >= Message.FindValueMessage.MAX_RESPONSE_LENGTH);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversize() {
+        new MessagePool(false).acquire(Message.MAX_SIZE + 1);
+    }
+
+    @Test
+    public void testReuse() {
+        MessagePool pool = new MessagePool(true);
+        assertTrue(pool.acquire(100).mBuffer.isDirect());
+
+        Message msg = pool.acquire(100);
+        Message.PingMessage.formatRequest(msg, new ID(new byte[ID.NUM_BYTES], 0));
+        msg.setRemoteSocketAddress(new InetSocketAddress("127.0.0.1", 5000));
+        final int free = pool.getFreeCount();
+        pool.release(msg);
+        assertEquals(free + 1, pool.getFreeCount());
+
+        Message reused = pool.acquire(100);
+        assertSame(msg, reused);
+        assertNull(reused.getRemoteSocketAddress());
+        assertEquals(0, reused.mBuffer.position());
+        assertEquals(reused.mBuffer.capacity(), reused.mBuffer.limit());
+        assertEquals(free, pool.getFreeCount());
+    }
+
+    @Test
+    public void testMaxFree() {
+        //the largest class carves one message per slab, so only the cap limits it
+        MessagePool pool = new MessagePool(false, 4);
+        Message[] messages = new Message[6];
+        for(int i=0;i<messages.length;i++) {
+            messages[i] = pool.acquire(Message.MAX_SIZE);
+        }
+        assertEquals(0, pool.getFreeCount());
+        for(int i=0;i<messages.length;i++) {
+            pool.release(messages[i]);
+        }
+        assertEquals(4, pool.getFreeCount());
+    }
+
+    @Test
+    public void testReleaseForeignMessage() {
+        MessagePool pool = new MessagePool(false);
+        MessagePool other = new MessagePool(false);
+        pool.release(pool.acquire(Message.MAX_SIZE));
+        final int free = pool.getFreeCount();
+
+        pool.release(new Message());
+        pool.release(other.acquire(Message.MAX_SIZE));
+        assertEquals(free, pool.getFreeCount());
+    }
+}
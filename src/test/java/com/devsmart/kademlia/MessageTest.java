@@ -0,0 +1,146 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class MessageTest {
+
+    private static ID createShortId(int firstbyte) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        iddata[0] = (byte) firstbyte;
+        return new ID(iddata, 0);
+    }
+
+    @Test
+    public void testRequestId() {
+        Message msg = new Message();
+        Message.PingMessage.formatRequest(msg, createShortId(5));
+        assertEquals(Message.VERSION, msg.version());
+        assertEquals(0, msg.getRequestId());
+
+        msg.setRequestId(0xCAFEBABE);
+        assertEquals(0xCAFEBABE, msg.getRequestId());
+        assertEquals(Message.PING, msg.getType());
+        assertFalse(msg.isResponse());
+        assertEquals(createShortId(5), Message.PingMessage.getId(msg));
+    }
+
+    @Test
+    public void testParseVersion0() {
+        ByteBuffer buf = ByteBuffer.allocate(1 + ID.NUM_BYTES);
+        buf.put(0, (byte) Message.PING);
+        createShortId(7).write(buf, 1);
+
+        Message msg = new Message(buf);
+        assertEquals(0, msg.version());
+        assertEquals(0, msg.getRequestId());
+        assertEquals(createShortId(7), Message.PingMessage.getId(msg));
+    }
+
+    @Test
+    public void testPingResponse() {
+        Message msg = new Message();
+        InetSocketAddress address = new InetSocketAddress("10.1.2.3", 4567);
+        Message.PingMessage.formatResponse(msg, createShortId(9), address);
+
+        assertTrue(msg.isResponse());
+        assertEquals(Message.PingMessage.MAX_LENGTH, msg.getLength());
+        assertEquals(address, Message.PingMessage.getSocketAddress(msg));
+    }
+
+    @Test
+    public void testPeerCursor() {
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        for(int i=0;i<3;i++) {
+            peers.add(new Peer(createShortId(i + 1), new InetSocketAddress("192.168.1." + (200 + i), 40000 + i)));
+        }
+        Message msg = new Message();
+        Message.FindPeersMessage.formatResponse(msg, peers);
+
+        Message.FindPeersMessage.PeerCursor cursor = new Message.FindPeersMessage.PeerCursor().reset(msg);
+        assertEquals(3, cursor.size());
+        for(int i=0;i<3;i++) {
+            assertTrue(cursor.next());
+            Peer p = peers.get(i);
+            assertEquals(p.id, cursor.getId());
+            assertEquals(p.getInetSocketAddress(), cursor.getSocketAddress());
+            assertEquals(p.getPackedAddress(), cursor.getPackedAddress());
+            assertEquals(p.id, ID.read(msg.mBuffer, cursor.getIdOffset()));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testPeerCursorTruncated() {
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        peers.add(new Peer(createShortId(1), new InetSocketAddress("10.0.0.1", 1000)));
+        peers.add(new Peer(createShortId(2), new InetSocketAddress("10.0.0.2", 1000)));
+        Message msg = new Message();
+        Message.FindPeersMessage.formatResponse(msg, peers);
+        msg.mBuffer.limit(msg.getLength() - 1);
+
+        Message.FindPeersMessage.PeerCursor cursor = new Message.FindPeersMessage.PeerCursor().reset(msg);
+        assertTrue(cursor.next());
+        assertEquals(createShortId(1), cursor.getId());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testConnectAddressCursor() {
+        ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        addresses.add(new InetSocketAddress("172.16.0.1", 9000));
+        addresses.add(new InetSocketAddress("8.8.4.4", 65535));
+        Message msg = new Message();
+        Message.ConnectMessage.formatRequest(msg, 0, createShortId(1), createShortId(2), addresses);
+
+        Message.ConnectMessage.AddressCursor cursor = new Message.ConnectMessage.AddressCursor().reset(msg);
+        for(InetSocketAddress address : addresses) {
+            assertTrue(cursor.next());
+            assertEquals(address, cursor.getSocketAddress());
+            assertEquals(Peer.packAddress(address), cursor.getPackedAddress());
+        }
+        assertFalse(cursor.next());
+        assertEquals(addresses, Message.ConnectMessage.getSocketAddresses(msg));
+    }
+
+    @Test
+    public void testStoreAndFindValue() {
+        ID key = createShortId(7);
+        Message msg = new Message();
+        Message.StoreMessage.formatRequest(msg, key, 3600, new byte[] { 9, 8, 7 });
+        assertEquals(Message.STORE, msg.getType());
+        assertEquals(key, Message.StoreMessage.getKey(msg));
+        assertEquals(3600, Message.StoreMessage.getTTL(msg));
+        assertEquals(3, Message.StoreMessage.getValueLength(msg));
+        assertEquals(8, msg.mBuffer.get(Message.StoreMessage.getValueOffset(msg) + 1));
+
+        //truncated value
+        msg.mBuffer.limit(msg.getLength() - 1);
+        assertEquals(-1, Message.StoreMessage.getValueLength(msg));
+
+        Message.FindValueMessage.formatValueResponse(msg, new byte[] { 5, 6 });
+        assertEquals(Message.FIND_VALUE, msg.getType());
+        assertTrue(msg.isResponse());
+        assertArrayEquals(new byte[] { 5, 6 }, Message.FindValueMessage.getValue(msg));
+
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        peers.add(new Peer(createShortId(1), new InetSocketAddress("10.0.0.1", 5000)));
+        peers.add(new Peer(createShortId(2), new InetSocketAddress("10.0.0.2", 5001)));
+        Message.FindValueMessage.formatPeersResponse(msg, peers);
+        assertFalse(Message.FindValueMessage.hasValue(msg));
+        assertNull(Message.FindValueMessage.getValue(msg));
+        Message.FindPeersMessage.PeerCursor cursor = Message.FindValueMessage.getPeers(msg, new Message.FindPeersMessage.PeerCursor());
+        assertEquals(2, cursor.size());
+        assertTrue(cursor.next());
+        assertEquals(createShortId(1), cursor.getId());
+        assertTrue(cursor.next());
+        assertEquals(new InetSocketAddress("10.0.0.2", 5001), cursor.getSocketAddress());
+        assertFalse(cursor.next());
+    }
+}
@@ -0,0 +1,290 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class NodeTest {
+
+    private static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    private static boolean waitForPeers(Node node, int count) throws InterruptedException {
+        for(int i=0;i<100;i++) {
+            ArrayList<Peer> peers = new ArrayList<Peer>();
+            node.getRoutingTable().getAllPeers(peers);
+            if(peers.size() >= count) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @Test
+    public void testPingAddsPeers() throws Exception {
+        Random r = new Random(1);
+        Node a = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        try {
+            a.sendPing(b.getLocalAddress());
+
+            assertTrue(waitForPeers(b, 1));
+            assertTrue(waitForPeers(a, 1));
+
+            ArrayList<Peer> peers = new ArrayList<Peer>();
+            a.getRoutingTable().getAllPeers(peers);
+            assertEquals(b.getLocalId(), peers.get(0).id);
+            assertEquals(Peer.Status.Alive, peers.get(0).getStatus());
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testFindPeers() throws Exception {
+        Random r = new Random(2);
+        Node a = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node c = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        c.start();
+        try {
+            c.sendPing(b.getLocalAddress());
+            assertTrue(waitForPeers(b, 1));
+
+            a.sendFindPeers(a.getLocalId(), b.getLocalAddress());
+            assertTrue(waitForPeers(a, 1));
+
+            ArrayList<Peer> peers = new ArrayList<Peer>();
+            a.getRoutingTable().getAllPeers(peers);
+            assertEquals(c.getLocalId(), peers.get(0).id);
+        } finally {
+            a.shutdown();
+            b.shutdown();
+            c.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestResponse() throws Exception {
+        Random r = new Random(3);
+        Node a = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        try {
+            Message response = a.ping(b.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            assertTrue(response.isResponse());
+            assertEquals(b.getLocalId(), Message.PingMessage.getId(response));
+
+            response = a.findPeers(a.getLocalId(), b.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            assertEquals(Message.FINDPEERS, response.getType());
+            assertEquals(a.getLocalId(), Message.FindPeersMessage.getPeers(response).iterator().next().id);
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Random r = new Random(6);
+        Node a = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        try {
+            a.ping(b.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            assertTrue(waitForPeers(b, 1));
+
+            NodeMetrics metrics = a.getMetrics();
+            assertTrue(metrics.getSent(Message.PING, false) >= 1);
+            assertTrue(metrics.getReceived(Message.PING, true) >= 1);
+            assertEquals(1, metrics.getRtt(Message.PING).getCount());
+            assertEquals(1, metrics.getBucketSizes()[a.getLocalId().getNumSharedPrefixBits(b.getLocalId())]);
+            assertEquals(Integer.valueOf(1), metrics.getPeerStatusCounts().get("Alive"));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = a.registerMBean();
+            assertEquals(a.getLocalId().toString(), server.getAttribute(name, "LocalId"));
+            assertNotNull(server.getAttribute(name, "RoundTripTimes"));
+            a.shutdown();
+            assertFalse(server.isRegistered(name));
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testReusePortShards() throws Exception {
+        Assume.assumeTrue(UdpTransport.isReusePortSupported());
+
+        Random r = new Random(7);
+        UdpTransport transport = new UdpTransport(new InetSocketAddress("127.0.0.1", 0), new MessagePool(true), Clock.SYSTEM, 4);
+        Node server = new Node(createRandomId(r), transport);
+        server.start();
+        ArrayList<Node> clients = new ArrayList<Node>();
+        try {
+            for(int i=0;i<16;i++) {
+                Node n = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+                n.start();
+                clients.add(n);
+            }
+            for(Node n : clients) {
+                Message response = n.ping(server.getLocalAddress()).get(5, TimeUnit.SECONDS);
+                assertEquals(server.getLocalId(), Message.PingMessage.getId(response));
+            }
+            assertEquals(clients.size(), server.getMetrics().getReceived(Message.PING, false));
+
+            Node searcher = clients.get(0);
+            List<Peer> result = searcher.lookup(createRandomId(r)).get(10, TimeUnit.SECONDS);
+            assertEquals(Message.FindPeersMessage.MAX_PEERS, result.size());
+        } finally {
+            server.shutdown();
+            for(Node n : clients) {
+                n.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testSendPacing() throws Exception {
+        Random r = new Random(8);
+        UdpTransport transport = new UdpTransport(new InetSocketAddress("127.0.0.1", 0));
+        transport.setSendRate(200, 10);
+        Node a = new Node(createRandomId(r), transport);
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        try {
+            final long start = System.nanoTime();
+            for(int i=0;i<60;i++) {
+                a.sendPing(b.getLocalAddress());
+            }
+            assertTrue(transport.getSendQueueDepth() > 0);
+
+            for(int i=0;i<200 && b.getMetrics().getReceived(Message.PING, false) < 60;i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(60, b.getMetrics().getReceived(Message.PING, false));
+            //the first 10 go out as a burst, the rest at 200 per second
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(0, transport.getNumSendDropped());
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testSendErrorDropsMessage() throws Exception {
+        Random r = new Random(10);
+        UdpTransport transport = new UdpTransport(new InetSocketAddress("127.0.0.1", 0));
+        Node a = new Node(createRandomId(r), transport);
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        try {
+            a.sendPing(InetSocketAddress.createUnresolved("nowhere.invalid", 5000));
+            a.sendPing(new InetSocketAddress("255.255.255.255", 5000));
+            a.sendPing(b.getLocalAddress());
+
+            for(int i=0;i<100 && b.getMetrics().getReceived(Message.PING, false) < 1;i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, b.getMetrics().getReceived(Message.PING, false));
+            assertEquals(2, transport.getNumSendDropped());
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteSnapshotWithoutFile() throws Exception {
+        Node node = new Node(createRandomId(new Random(9)), new InetSocketAddress("127.0.0.1", 0));
+        assertEquals(0, node.writeSnapshot());
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        Random r = new Random(4);
+        Node a = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        Node b = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+        a.start();
+        b.start();
+        InetSocketAddress address = b.getLocalAddress();
+        b.shutdown();
+        try {
+            Message msg = new Message();
+            Message.PingMessage.formatRequest(msg, a.getLocalId());
+            msg.setRemoteSocketAddress(address);
+            a.sendRequest(msg, 200).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            a.shutdown();
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        Random r = new Random(5);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for(int i=0;i<20;i++) {
+            Node n = new Node(createRandomId(r), new InetSocketAddress("127.0.0.1", 0));
+            n.start();
+            nodes.add(n);
+        }
+        try {
+            Node seed = nodes.get(0);
+            for(int i=1;i<nodes.size();i++) {
+                nodes.get(i).ping(seed.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            }
+
+            ID target = createRandomId(r);
+            Node searcher = nodes.get(nodes.size() - 1);
+            ArrayList<Peer> known = new ArrayList<Peer>();
+            seed.getRoutingTable().getAllPeers(known);
+            known.add(new Peer(seed.getLocalId(), seed.getLocalAddress()));
+            Collections.sort(known, new DistanceComparator(target));
+
+            List<Peer> result = searcher.lookup(target).get(10, TimeUnit.SECONDS);
+
+            assertFalse(result.isEmpty());
+            for(int i=1;i<result.size();i++) {
+                assertTrue(ID.compareDistance(result.get(i - 1).id, result.get(i).id, target) < 0);
+            }
+            Peer closest = known.get(0).id.equals(searcher.getLocalId()) ? known.get(1) : known.get(0);
+            assertEquals(closest.id, result.get(0).id);
+        } finally {
+            for(Node n : nodes) {
+                n.shutdown();
+            }
+        }
+    }
+}
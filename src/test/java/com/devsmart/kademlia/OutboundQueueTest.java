@@ -0,0 +1,58 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testPriorities() {
+        OutboundQueue queue = new OutboundQueue(8);
+        Message low = new Message();
+        Message normal = new Message();
+        assertTrue(queue.offer(low, Transport.PRIORITY_LOW));
+        assertTrue(queue.offer(normal, Transport.PRIORITY_NORMAL));
+        assertEquals(2, queue.size());
+
+        //normal traffic goes first
+        assertSame(normal, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testLowPriorityDroppedFirst() {
+        OutboundQueue queue = new OutboundQueue(8);
+        for(int i=0;i<4;i++) {
+            assertTrue(queue.offer(new Message(), Transport.PRIORITY_LOW));
+        }
+        assertFalse(queue.offer(new Message(), Transport.PRIORITY_LOW));
+
+        for(int i=0;i<4;i++) {
+            assertTrue(queue.offer(new Message(), Transport.PRIORITY_NORMAL));
+        }
+        assertFalse(queue.offer(new Message(), Transport.PRIORITY_NORMAL));
+        assertEquals(8, queue.size());
+        assertEquals(2, queue.getNumDropped());
+    }
+
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(100, 5, 0);
+        for(int i=0;i<5;i++) {
+            assertTrue(bucket.tryAcquire(0));
+        }
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(10, bucket.getWaitMillis(0));
+
+        assertFalse(bucket.tryAcquire(9));
+        assertTrue(bucket.tryAcquire(10));
+        assertFalse(bucket.tryAcquire(10));
+
+        //never more than the burst
+        assertEquals(5, bucket.getTokens(60 * 1000), 0.0001);
+    }
+}
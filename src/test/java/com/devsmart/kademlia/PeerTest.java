@@ -51,4 +51,38 @@ public class PeerTest {
 
         assertFalse(a.equals(b));
     }
+
+    @Test
+    public void testStatusTransitions() {
+        VirtualClock clock = new VirtualClock(1000);
+        Peer p = new Peer(createShortId(1), new InetSocketAddress("127.0.0.1", 8080), clock);
+        assertEquals(Peer.Status.Unknown, p.getStatus());
+        assertEquals(Long.MAX_VALUE, p.getLastSeenMillisec());
+
+        p.markSeen();
+        assertEquals(Peer.Status.Alive, p.getStatus());
+
+        clock.advance(14999);
+        assertEquals(Peer.Status.Alive, p.getStatus());
+        clock.advance(1);
+        assertEquals(Peer.Status.Dying, p.getStatus());
+        assertEquals(15000, p.getLastSeenMillisec());
+
+        clock.advance(45000);
+        assertEquals(Peer.Status.Dead, p.getStatus());
+
+        p.markSeen();
+        assertEquals(Peer.Status.Alive, p.getStatus());
+        assertEquals(Peer.Status.Dying, p.getStatus(clock.currentTimeMillis() + 20000));
+    }
+
+    @Test
+    public void testNeverSeenPeerDies() {
+        VirtualClock clock = new VirtualClock();
+        Peer p = new Peer(createShortId(1), new InetSocketAddress("127.0.0.1", 8080), clock);
+        clock.advance(59999);
+        assertEquals(Peer.Status.Unknown, p.getStatus());
+        clock.advance(1);
+        assertEquals(Peer.Status.Dead, p.getStatus());
+    }
 }
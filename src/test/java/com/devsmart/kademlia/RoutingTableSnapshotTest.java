@@ -0,0 +1,74 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RoutingTableSnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random r = new Random(1);
+        VirtualClock clock = new VirtualClock(10000);
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        for(int i=0;i<50;i++) {
+            Peer p = new Peer(createRandomId(r), new InetSocketAddress("10.0." + i + ".1", 1000 + i), clock);
+            if(i % 5 != 0) {
+                p.markSeen(clock.currentTimeMillis() - i * 100);
+            }
+            if(i % 2 == 0) {
+                p.getRtt().update(20 + i);
+            }
+            peers.add(p);
+        }
+
+        Path file = mFolder.getRoot().toPath().resolve("peers.snapshot");
+        assertEquals(peers.size(), RoutingTableSnapshot.write(file, peers, clock));
+        assertEquals(RoutingTableSnapshot.HEADER_LENGTH + peers.size() * RoutingTableSnapshot.RECORD_LENGTH, Files.size(file));
+
+        List<RoutingTableSnapshot.Entry> entries = RoutingTableSnapshot.read(file);
+        assertEquals(peers.size(), entries.size());
+        for(int i=1;i<entries.size();i++) {
+            assertTrue(entries.get(i - 1).lastSeenEpochMillis >= entries.get(i).lastSeenEpochMillis);
+        }
+        for(RoutingTableSnapshot.Entry entry : entries) {
+            Peer p = null;
+            for(Peer candidate : peers) {
+                if(candidate.id.equals(entry.id)) {
+                    p = candidate;
+                }
+            }
+            assertNotNull(p);
+            assertEquals(p.getInetSocketAddress(), entry.socketAddress);
+            assertEquals(p.getRtt().hasSample() ? p.getRtt().getSrtt() : -1, entry.srtt);
+            assertEquals(p.getLastSeenTime() == Long.MIN_VALUE, entry.lastSeenEpochMillis == 0);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsTruncated() throws Exception {
+        Path file = mFolder.getRoot().toPath().resolve("peers.snapshot");
+        Files.write(file, new byte[] {0x4B, 0x44, 0x54, 0x53, 0, 1, 0, 0, 0, 5});
+        RoutingTableSnapshot.read(file);
+    }
+}
@@ -0,0 +1,310 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class RoutingTableTest {
+
+    private static final Predicate<Peer> ALL = new Predicate<Peer>() {
+        @Override
+        public boolean test(Peer peer) {
+            return true;
+        }
+    };
+
+    private static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    private static RoutingTable createTable(Random r, int numPeers) {
+        RoutingTable table = new RoutingTable(createRandomId(r));
+        for(int i=0;i<numPeers;i++) {
+            table.getPeer(createRandomId(r), new InetSocketAddress("127.0.0.1", 1000 + i));
+        }
+        return table;
+    }
+
+    @Test
+    public void testRandomIdInBucket() {
+        Random r = new Random(10);
+        final ID localId = createRandomId(r);
+        RoutingTable table = new RoutingTable(localId);
+        for(int i=0;i<RoutingTable.NUM_BUCKETS;i++) {
+            assertEquals(i, table.getRandomId(i, r).getNumSharedPrefixBits(localId));
+        }
+    }
+
+    @Test
+    public void testStalestBucket() {
+        Random r = new Random(11);
+        VirtualClock clock = new VirtualClock();
+        final ID localId = createRandomId(r);
+        RoutingTable table = new RoutingTable(localId, RoutingTable.DEFAULT_K, clock);
+        assertEquals(-1, table.getStalestBucket(clock.currentTimeMillis() + 1000, 100));
+
+        table.getPeer(table.getRandomId(0, r), new InetSocketAddress("127.0.0.1", 1000));
+        table.getPeer(table.getRandomId(3, r), new InetSocketAddress("127.0.0.1", 1001));
+        clock.advance(1000);
+        assertEquals(-1, table.getStalestBucket(clock.currentTimeMillis(), 1000));
+
+        //buckets past the closest non-empty one are never stale
+        clock.advance(1);
+        table.touchBucket(table.getRandomId(0, r), clock.currentTimeMillis());
+        table.touchBucket(table.getRandomId(2, r), clock.currentTimeMillis());
+        table.touchBucket(table.getRandomId(3, r), clock.currentTimeMillis());
+        assertEquals(1, table.getStalestBucket(clock.currentTimeMillis(), 1000));
+
+        table.touchBucket(table.getRandomId(1, r), clock.currentTimeMillis() - 500);
+        clock.advance(600);
+        assertEquals(1, table.getStalestBucket(clock.currentTimeMillis(), 1000));
+        clock.advance(500);
+        assertEquals(1, table.getStalestBucket(clock.currentTimeMillis(), 1000));
+        table.touchBucket(table.getRandomId(1, r), clock.currentTimeMillis());
+        assertEquals(0, table.getStalestBucket(clock.currentTimeMillis(), 1000));
+    }
+
+    @Test
+    public void testNextHop() {
+        Random r = new Random(9);
+        final ID localId = createRandomId(r);
+        RoutingTable table = new RoutingTable(localId);
+        for(int i=0;i<500;i++) {
+            table.getPeer(createRandomId(r), new InetSocketAddress("127.0.0.1", 1000 + i));
+        }
+        final long now = table.getClock().currentTimeMillis();
+
+        for(int i=0;i<200;i++) {
+            ID target = createRandomId(r);
+            ArrayList<Peer> all = new ArrayList<Peer>();
+            table.getAllPeers(all);
+            Collections.sort(all, new DistanceComparator(target));
+            Peer closest = all.get(0);
+
+            Peer next = table.getNextHop(target.getHigh(), target.getMid(), target.getLow(), now);
+            if(ID.compareDistance(closest.id, localId, target) < 0) {
+                assertSame(closest, next);
+            } else {
+                assertNull(next);
+            }
+        }
+
+        //a message for us goes nowhere
+        assertNull(table.getNextHop(localId.getHigh(), localId.getMid(), localId.getLow(), now));
+    }
+
+    @Test
+    public void testClosestPeersMatchesFullSort() {
+        Random r = new Random(1);
+        RoutingTable table = createTable(r, 500);
+
+        for(int i=0;i<50;i++) {
+            ID target = createRandomId(r);
+            ArrayList<Peer> all = new ArrayList<Peer>();
+            table.getAllPeers(all);
+            Collections.sort(all, new DistanceComparator(target));
+
+            List<Peer> closest = table.getClosestPeers(target, 8, ALL);
+            assertEquals(all.subList(0, 8), closest);
+        }
+    }
+
+    @Test
+    public void testClosestPeersToLocalId() {
+        Random r = new Random(2);
+        ID localId = createRandomId(r);
+        RoutingTable table = new RoutingTable(localId);
+        for(int i=0;i<100;i++) {
+            table.getPeer(createRandomId(r), new InetSocketAddress("127.0.0.1", 1000 + i));
+        }
+
+        ArrayList<Peer> all = new ArrayList<Peer>();
+        table.getAllPeers(all);
+        Collections.sort(all, new DistanceComparator(localId));
+
+        assertEquals(all.subList(0, 5), table.getClosestPeers(localId, 5, ALL));
+    }
+
+    @Test
+    public void testClosestPeersFilter() {
+        Random r = new Random(3);
+        RoutingTable table = createTable(r, 50);
+
+        List<Peer> closest = table.getClosestPeers(createRandomId(r), 8, new Predicate<Peer>() {
+            @Override
+            public boolean test(Peer peer) {
+                return peer.getStatus() == Peer.Status.Alive;
+            }
+        });
+        assertTrue(closest.isEmpty());
+    }
+
+    private static ID createBucketZeroId(int lastByte) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        iddata[0] = (byte) 0x80;
+        iddata[ID.NUM_BYTES - 1] = (byte) lastByte;
+        return new ID(iddata, 0);
+    }
+
+    @Test
+    public void testFullBucketProbesAndReplaces() {
+        final ArrayList<Peer> probed = new ArrayList<Peer>();
+        final ArrayList<Peer> added = new ArrayList<Peer>();
+        RoutingTable table = new RoutingTable(new ID(new byte[ID.NUM_BYTES], 0), 2);
+        table.setListener(new RoutingTable.Listener() {
+            @Override
+            public void onPeerAdded(Peer peer) {
+                added.add(peer);
+            }
+
+            @Override
+            public void onPeerRemoved(Peer peer) {
+            }
+
+            @Override
+            public void onProbe(Peer peer) {
+                probed.add(peer);
+            }
+        });
+
+        Peer a = table.getPeer(createBucketZeroId(1), new InetSocketAddress("127.0.0.1", 1001));
+        Peer b = table.getPeer(createBucketZeroId(2), new InetSocketAddress("127.0.0.1", 1002));
+        a.markSeen();
+        b.markSeen();
+        Peer c = table.getPeer(createBucketZeroId(3), new InetSocketAddress("127.0.0.1", 1003));
+
+        assertEquals(2, table.mPeers[0].size());
+        assertFalse(table.contains(c));
+        assertEquals(1, probed.size());
+        assertSame(a, probed.get(0));
+        assertSame(c, table.getPeer(c.id, c.getInetSocketAddress()));
+
+        assertTrue(table.removePeer(a));
+        assertTrue(table.contains(c));
+        assertEquals(2, table.mPeers[0].size());
+        assertEquals(3, added.size());
+        assertSame(c, added.get(2));
+    }
+
+    @Test
+    public void testUnansweredProbeIsReplaced() {
+        VirtualClock clock = new VirtualClock();
+        RoutingTable table = new RoutingTable(new ID(new byte[ID.NUM_BYTES], 0), 2, clock);
+
+        Peer a = table.getPeer(createBucketZeroId(1), new InetSocketAddress("127.0.0.1", 1001));
+        Peer b = table.getPeer(createBucketZeroId(2), new InetSocketAddress("127.0.0.1", 1002));
+        a.markSeen();
+        clock.advance(1);
+        b.markSeen();
+        Peer c = table.getPeer(createBucketZeroId(3), new InetSocketAddress("127.0.0.1", 1003));
+        assertFalse(table.contains(c));
+
+        //a was probed and never answered
+        clock.advance(RoutingTable.PROBE_TIMEOUT + 1);
+        b.markSeen();
+        c.markSeen();
+        table.getPeer(createBucketZeroId(4), new InetSocketAddress("127.0.0.1", 1004));
+        assertFalse(table.contains(a));
+        assertTrue(table.contains(b));
+        assertTrue(table.contains(c));
+    }
+
+    @Test
+    public void testPromotesFastestReplacement() {
+        VirtualClock clock = new VirtualClock();
+        RoutingTable table = new RoutingTable(new ID(new byte[ID.NUM_BYTES], 0), 1, clock);
+
+        Peer a = table.getPeer(createBucketZeroId(1), new InetSocketAddress("127.0.0.1", 1001));
+        Peer slow = table.getPeer(createBucketZeroId(2), new InetSocketAddress("127.0.0.1", 1002));
+        Peer fast = table.getPeer(createBucketZeroId(3), new InetSocketAddress("127.0.0.1", 1003));
+        a.markSeen();
+        slow.markSeen();
+        slow.getRtt().update(300);
+        fast.markSeen();
+        fast.getRtt().update(20);
+        clock.advance(1);
+        slow.markSeen();
+
+        assertTrue(table.removePeer(a));
+        assertTrue(table.contains(fast));
+        assertFalse(table.contains(slow));
+    }
+
+    @Test
+    public void testGetPeerInternsPeers() {
+        Random r = new Random(7);
+        RoutingTable table = createTable(r, 200);
+
+        ArrayList<Peer> all = new ArrayList<Peer>();
+        table.getAllPeers(all);
+        for(Peer p : all) {
+            assertSame(p, table.getPeer(p.id, new InetSocketAddress("127.0.0.1", p.getInetSocketAddress().getPort())));
+            assertSame(p, table.findPeer(p.id.getHigh(), p.id.getMid(), p.id.getLow(), Peer.packAddress(p.getInetSocketAddress())));
+        }
+
+        Peer removed = all.get(0);
+        assertTrue(table.removePeer(removed));
+        assertNull(table.findPeer(removed.id.getHigh(), removed.id.getMid(), removed.id.getLow(), Peer.packAddress(removed.getInetSocketAddress())));
+        for(int i=1;i<all.size();i++) {
+            Peer p = all.get(i);
+            assertSame(p, table.findPeer(p.id.getHigh(), p.id.getMid(), p.id.getLow(), Peer.packAddress(p.getInetSocketAddress())));
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsDuringWrites() throws Exception {
+        final RoutingTable table = new RoutingTable(createRandomId(new Random(4)), 4);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random r = new Random(5);
+                ArrayList<Peer> peers = new ArrayList<Peer>();
+                for(int i=0;i<20000;i++) {
+                    Peer p = table.getPeer(createRandomId(r), new InetSocketAddress("127.0.0.1", 1000 + (i % 1000)));
+                    peers.add(p);
+                    if(i % 3 == 0) {
+                        table.removePeer(peers.get(r.nextInt(peers.size())));
+                    }
+                }
+            }
+        });
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random r = new Random(6);
+                try {
+                    for(int i=0;i<20000;i++) {
+                        table.getClosestPeers(createRandomId(r), 8, ALL);
+                        table.getAllPeers(new ArrayList<Peer>());
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertNull(error.get());
+
+        for(KBucket bucket : table.mPeers) {
+            assertTrue(bucket.size() <= 4);
+        }
+    }
+}
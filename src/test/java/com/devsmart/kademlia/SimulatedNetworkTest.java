@@ -0,0 +1,459 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SimulatedNetworkTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    private static ArrayList<Node> createNetwork(SimulatedNetwork network, Random r, int size) throws Exception {
+        ArrayList<Node> nodes = new ArrayList<Node>(size);
+        for(int i=0;i<size;i++) {
+            Node n = new Node(createRandomId(r), network.createTransport());
+            n.start();
+            nodes.add(n);
+        }
+
+        Node seed = nodes.get(0);
+        for(int i=1;i<size;i++) {
+            nodes.get(i).ping(seed.getLocalAddress());
+        }
+        network.runFor(1000);
+
+        for(int i=1;i<size;i++) {
+            Node n = nodes.get(i);
+            assertTrue(network.runUntilDone(n.lookup(n.getLocalId()), 30000));
+        }
+        return nodes;
+    }
+
+    private static Peer findClosest(List<Node> nodes, ID target, Node exclude) throws Exception {
+        return findClosest(nodes, target, exclude, 1).get(0);
+    }
+
+    private static List<Peer> findClosest(List<Node> nodes, ID target, Node exclude, int k) throws Exception {
+        ArrayList<Peer> all = new ArrayList<Peer>(nodes.size());
+        for(Node n : nodes) {
+            if(n != exclude) {
+                all.add(new Peer(n.getLocalId(), n.getLocalAddress()));
+            }
+        }
+        Collections.sort(all, new DistanceComparator(target));
+        return all.subList(0, Math.min(k, all.size()));
+    }
+
+    @Test
+    public void testLookupFindsClosestNode() throws Exception {
+        Random r = new Random(1);
+        SimulatedNetwork network = new SimulatedNetwork(1);
+        ArrayList<Node> nodes = createNetwork(network, r, 500);
+
+        for(int i=0;i<20;i++) {
+            ID target = createRandomId(r);
+            Node searcher = nodes.get(r.nextInt(nodes.size()));
+            final long start = network.getClock().currentTimeMillis();
+            CompletableFuture<List<Peer>> result = searcher.lookup(target);
+            assertTrue(network.runUntilDone(result, 30000));
+
+            List<Peer> peers = result.get();
+            assertEquals(Message.FindPeersMessage.MAX_PEERS, peers.size());
+            assertEquals(findClosest(nodes, target, searcher).id, peers.get(0).id);
+            assertTrue(network.getClock().currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void testLookupWithLossAndChurn() throws Exception {
+        Random r = new Random(2);
+        SimulatedNetwork network = new SimulatedNetwork(2);
+        ArrayList<Node> nodes = createNetwork(network, r, 300);
+
+        network.setLossRate(0.05);
+        ArrayList<Node> online = new ArrayList<Node>();
+        for(int i=1;i<nodes.size();i++) {
+            Node n = nodes.get(i);
+            if(r.nextInt(5) == 0) {
+                ((SimulatedTransport) n.getTransport()).setOnline(false);
+            } else {
+                online.add(n);
+            }
+        }
+
+        for(int i=0;i<10;i++) {
+            ID target = createRandomId(r);
+            Node searcher = online.get(r.nextInt(online.size()));
+            CompletableFuture<List<Peer>> result = searcher.lookup(target);
+            assertTrue(network.runUntilDone(result, 60000));
+
+            for(Peer p : result.get()) {
+                SimulatedTransport transport = null;
+                for(Node n : nodes) {
+                    if(n.getLocalId().equals(p.id)) {
+                        transport = (SimulatedTransport) n.getTransport();
+                    }
+                }
+                assertTrue(transport.isOnline());
+            }
+        }
+        assertTrue(network.getNumDropped() > 0);
+    }
+
+    @Test
+    public void testLookupUsesLateAnswers() throws Exception {
+        Random r = new Random(10);
+        SimulatedNetwork network = new SimulatedNetwork(10);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for(int i=0;i<40;i++) {
+            Node n = new Node(createRandomId(r), network.createTransport());
+            n.start();
+            nodes.add(n);
+        }
+        //everyone knows everyone, so the k closest are always reachable
+        for(int i=0;i<nodes.size();i++) {
+            for(int j=i+1;j<nodes.size();j++) {
+                nodes.get(i).ping(nodes.get(j).getLocalAddress());
+            }
+        }
+        network.runFor(1000);
+
+        //every answer now comes after the soft timeouts learned above but before the hard
+        //timeout, and only once every candidate has been queried and gone slow
+        network.setLatency(850, 950);
+        ArrayList<ID> targets = new ArrayList<ID>();
+        ArrayList<CompletableFuture<List<Peer>>> results = new ArrayList<CompletableFuture<List<Peer>>>();
+        for(int i=0;i<5;i++) {
+            ID target = createRandomId(r);
+            targets.add(target);
+            results.add(nodes.get(i).lookup(target, Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA));
+        }
+
+        for(int i=0;i<results.size();i++) {
+            assertTrue(network.runUntilDone(results.get(i), 60000));
+            List<Peer> peers = results.get(i).get();
+            List<Peer> closest = findClosest(nodes, targets.get(i), nodes.get(i), Message.FindPeersMessage.MAX_PEERS);
+            assertEquals(closest.size(), peers.size());
+            for(int j=0;j<closest.size();j++) {
+                assertEquals(closest.get(j).id, peers.get(j).id);
+            }
+        }
+    }
+
+    @Test
+    public void testPeerRtt() throws Exception {
+        Random r = new Random(3);
+        SimulatedNetwork network = new SimulatedNetwork(3);
+        network.setLatency(25, 25);
+        ArrayList<Node> nodes = createNetwork(network, r, 50);
+        network.runFor(5000);
+
+        ArrayList<Peer> peers = new ArrayList<Peer>();
+        nodes.get(1).getRoutingTable().getAllPeers(peers);
+        assertFalse(peers.isEmpty());
+        for(Peer p : peers) {
+            assertTrue(p.getRtt().hasSample());
+            assertEquals(50, p.getRtt().getSrtt());
+        }
+    }
+
+    @Test
+    public void testWarmRestartFromSnapshot() throws Exception {
+        Random r = new Random(4);
+        SimulatedNetwork network = new SimulatedNetwork(4);
+        ArrayList<Node> nodes = createNetwork(network, r, 100);
+        Path file = mFolder.getRoot().toPath().resolve("node.snapshot");
+
+        Node node = nodes.get(nodes.size() - 1);
+        ArrayList<Peer> before = new ArrayList<Peer>();
+        node.getRoutingTable().getAllPeers(before);
+        assertEquals(before.size(), RoutingTableSnapshot.write(file, before, network.getClock()));
+        node.shutdown();
+
+        Node restarted = new Node(node.getLocalId(), network.createTransport());
+        restarted.setSnapshotFile(file, 60000);
+        restarted.start();
+        network.runFor(KeepAliveManager.KEEP_ALIVE_INTERVAL);
+
+        assertEquals(before.size(), restarted.getRoutingTable().getStatusCounts()[Peer.Status.Alive.ordinal()]);
+        ID target = createRandomId(r);
+        CompletableFuture<List<Peer>> result = restarted.lookup(target);
+        assertTrue(network.runUntilDone(result, 30000));
+        assertEquals(Message.FindPeersMessage.MAX_PEERS, result.get().size());
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        Random r = new Random(4);
+        SimulatedNetwork network = new SimulatedNetwork(4);
+        ArrayList<Node> nodes = createNetwork(network, r, 50);
+
+        ID key = createRandomId(r);
+        byte[] value = new byte[] { 1, 2, 3, 4 };
+        CompletableFuture<Integer> put = nodes.get(1).put(key, value, 60);
+        assertTrue(network.runUntilDone(put, 30000));
+        assertEquals(Message.FindPeersMessage.MAX_PEERS, put.get().intValue());
+
+        CompletableFuture<byte[]> get = nodes.get(2).get(key);
+        assertTrue(network.runUntilDone(get, 30000));
+        assertArrayEquals(value, get.get());
+
+        CompletableFuture<byte[]> missing = nodes.get(2).get(createRandomId(r));
+        assertTrue(network.runUntilDone(missing, 30000));
+        assertNull(missing.get());
+
+        //expired everywhere after the TTL
+        network.runFor(61 * 1000);
+        get = nodes.get(3).get(key);
+        assertTrue(network.runUntilDone(get, 30000));
+        assertNull(get.get());
+    }
+
+    @Test
+    public void testLookupCache() throws Exception {
+        Random r = new Random(5);
+        SimulatedNetwork network = new SimulatedNetwork(5);
+        ArrayList<Node> nodes = createNetwork(network, r, 50);
+        Node searcher = nodes.get(1);
+        searcher.setLookupCache(10 * 60 * 1000, 100);
+
+        //concurrent lookups share one search
+        ID target = createRandomId(r);
+        CompletableFuture<List<Peer>> first = searcher.lookup(target);
+        CompletableFuture<List<Peer>> second = searcher.lookup(target);
+        assertTrue(network.runUntilDone(first, 30000));
+        assertTrue(network.runUntilDone(second, 30000));
+        assertEquals(first.get(), second.get());
+        assertEquals(1, searcher.getLookupCacheStats().loadCount());
+
+        CompletableFuture<List<Peer>> cached = searcher.lookup(target);
+        assertTrue(cached.isDone());
+        assertEquals(first.get(), cached.get());
+        assertEquals(1, searcher.getLookupCacheStats().loadCount());
+
+        //a dead peer invalidates the entry
+        Peer closest = first.get().get(0);
+        for(Node n : nodes) {
+            if(n.getLocalId().equals(closest.id)) {
+                ((SimulatedTransport) n.getTransport()).setOnline(false);
+            }
+        }
+        network.runFor(90 * 1000);
+        assertEquals(Peer.Status.Dead, closest.getStatus());
+
+        CompletableFuture<List<Peer>> refreshed = searcher.lookup(target);
+        assertFalse(refreshed.isDone());
+        assertTrue(network.runUntilDone(refreshed, 30000));
+        assertEquals(2, searcher.getLookupCacheStats().loadCount());
+        for(Peer p : refreshed.get()) {
+            assertNotEquals(closest.id, p.id);
+        }
+    }
+
+    @Test
+    public void testFloodIsShed() throws Exception {
+        Random r = new Random(6);
+        SimulatedNetwork network = new SimulatedNetwork(6);
+        ArrayList<Node> nodes = createNetwork(network, r, 20);
+        Node victim = nodes.get(0);
+        victim.setAdmissionControl(new AdmissionControl());
+        final ID victimId = victim.getLocalId();
+        final InetSocketAddress victimAddress = victim.getLocalAddress();
+
+        final AtomicInteger answered = new AtomicInteger();
+        final SimulatedTransport attacker = network.createTransport();
+        attacker.start(new Transport.Receiver() {
+            @Override
+            public void onReceive(Message msg) {
+                answered.incrementAndGet();
+            }
+
+            @Override
+            public long onTick(long now) {
+                Message msg = attacker.getMessagePool().acquire(Message.FindPeersMessage.REQUEST_LENGTH);
+                Message.FindPeersMessage.formatRequest(msg, victimId);
+                msg.setRemoteSocketAddress(victimAddress);
+                attacker.send(msg);
+                return 1;
+            }
+        });
+
+        //a thousand FINDPEERS a second for ten seconds while the other nodes keep using the victim
+        final long start = network.getClock().currentTimeMillis();
+        for(int i=0;i<10;i++) {
+            Node n = nodes.get(1 + r.nextInt(nodes.size() - 1));
+            CompletableFuture<Message> ping = n.ping(victimAddress);
+            assertTrue(network.runUntilDone(ping, 1000));
+            ping.get();
+            CompletableFuture<List<Peer>> lookup = n.lookup(createRandomId(r), Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA);
+            assertTrue(network.runUntilDone(lookup, 5000));
+            network.runUntil(start + (i + 1) * 1000);
+        }
+        attacker.shutdown();
+
+        //the burst plus 50 FINDPEERS a second
+        final long elapsed = network.getClock().currentTimeMillis() - start;
+        assertTrue(answered.get() <= AdmissionControl.DEFAULT_SOURCE_BURST / 2 + 50 * (elapsed / 1000 + 1));
+        assertTrue(victim.getMetrics().getShedPackets() > 5000);
+    }
+
+    @Test
+    public void testBootstrap() throws Exception {
+        Random r = new Random(8);
+        SimulatedNetwork network = new SimulatedNetwork(8);
+        ArrayList<Node> nodes = createNetwork(network, r, 300);
+
+        Node joiner = new Node(createRandomId(r), network.createTransport());
+        joiner.start();
+        ArrayList<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
+        for(int i=0;i<3;i++) {
+            seeds.add(nodes.get(r.nextInt(nodes.size())).getLocalAddress());
+        }
+        //a seed that never answers does not hold up the others
+        seeds.add(new InetSocketAddress("10.255.255.1", 5000));
+
+        final ArrayList<Integer> progress = new ArrayList<Integer>();
+        final long start = network.getClock().currentTimeMillis();
+        CompletableFuture<Integer> result = joiner.bootstrap(seeds, new Node.BootstrapListener() {
+            @Override
+            public void onProgress(int numPeers, int numBuckets) {
+                progress.add(numPeers);
+            }
+        });
+        assertTrue(network.runUntilDone(result, 30000));
+        assertTrue(network.getClock().currentTimeMillis() - start < 5000);
+        assertEquals(progress.get(progress.size() - 1), result.get());
+        assertTrue(progress.get(0) < result.get());
+
+        //every bucket farther out than the closest non-empty one is filled if any node can go there
+        final int[] sizes = joiner.getRoutingTable().getBucketSizes();
+        int closest = 0;
+        for(int i=0;i<sizes.length;i++) {
+            if(sizes[i] > 0) {
+                closest = i;
+            }
+        }
+        for(int i=0;i<closest;i++) {
+            boolean populated = false;
+            for(Node n : nodes) {
+                populated |= n.getLocalId().getNumSharedPrefixBits(joiner.getLocalId()) == i;
+            }
+            assertEquals(populated, sizes[i] > 0);
+        }
+
+        CompletableFuture<List<Peer>> lookup = joiner.lookup(createRandomId(r));
+        assertTrue(network.runUntilDone(lookup, 30000));
+        assertEquals(Message.FindPeersMessage.MAX_PEERS, lookup.get().size());
+
+        Node lonely = new Node(createRandomId(r), network.createTransport());
+        lonely.start();
+        result = lonely.bootstrap(Collections.singletonList(new InetSocketAddress("10.255.255.1", 5000)));
+        assertTrue(network.runUntilDone(result, 30000));
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testBucketRefresh() throws Exception {
+        Random r = new Random(9);
+        SimulatedNetwork network = new SimulatedNetwork(9);
+        ArrayList<Node> nodes = createNetwork(network, r, 100);
+
+        Node idle = new Node(createRandomId(r), network.createTransport());
+        Node busy = new Node(createRandomId(r), network.createTransport());
+        for(Node n : new Node[] { idle, busy }) {
+            n.setBucketRefreshInterval(60 * 1000);
+            n.start();
+            assertTrue(network.runUntilDone(n.bootstrap(Collections.singletonList(nodes.get(0).getLocalAddress())), 30000));
+        }
+
+        //the busy node's own lookups into its farthest bucket keep that bucket fresh
+        final long start = network.getClock().currentTimeMillis();
+        for(int i=0;i<20;i++) {
+            busy.lookup(busy.getRoutingTable().getRandomId(0, r), Message.FindPeersMessage.MAX_PEERS, Lookup.DEFAULT_ALPHA);
+            network.runFor(30 * 1000);
+        }
+        final long now = network.getClock().currentTimeMillis();
+
+        //every bucket up to the closest non-empty one was looked into within the interval plus one check
+        for(Node n : new Node[] { idle, busy }) {
+            final RoutingTable table = n.getRoutingTable();
+            assertEquals(-1, table.getStalestBucket(now, 60 * 1000 + 10 * 1000));
+            final int numRefreshes = n.getNumBucketRefreshes();
+            assertTrue(numRefreshes > 0);
+            //no more than one refresh per bucket per interval
+            int closest = 0;
+            for(int i=0;i<RoutingTable.NUM_BUCKETS;i++) {
+                if(table.mPeers[i].size() > 0) {
+                    closest = i;
+                }
+            }
+            assertTrue(numRefreshes <= (closest + 1) * ((now - start) / (60 * 1000) + 1));
+        }
+        assertTrue(busy.getRoutingTable().mPeers[0].getLastTouched() >= now - 30 * 1000);
+    }
+
+    private static long sum(List<Node> nodes, int type, boolean sent) {
+        long retval = 0;
+        for(Node n : nodes) {
+            retval += sent ? n.getMetrics().getSent(type, false) : n.getMetrics().getReceived(type, false);
+        }
+        return retval;
+    }
+
+    @Test
+    public void testConnectRelay() throws Exception {
+        Random r = new Random(7);
+        SimulatedNetwork network = new SimulatedNetwork(7);
+        ArrayList<Node> nodes = createNetwork(network, r, 200);
+
+        //greedy forwarding only reaches the target if every hop knows a closer peer, so
+        //each CONNECT is either delivered or dropped once, and never loops
+        int delivered = 0;
+        for(int i=0;i<20;i++) {
+            Node from = nodes.get(i);
+            Node to = nodes.get(nodes.size() - 1 - i);
+            final long received = to.getMetrics().getReceived(Message.CONNECT, false);
+            final long sent = sum(nodes, Message.CONNECT, true);
+            long dropped = 0;
+            for(Node n : nodes) {
+                dropped -= n.getMetrics().getDroppedPackets();
+            }
+
+            assertTrue(from.sendConnect(to.getLocalId(), Collections.singletonList(from.getLocalAddress())));
+            network.runFor(1000);
+
+            for(Node n : nodes) {
+                dropped += n.getMetrics().getDroppedPackets();
+            }
+            final long hops = sum(nodes, Message.CONNECT, true) - sent;
+            assertTrue(hops >= 1 && hops < Node.MAX_CONNECT_HOPS);
+            if(to.getMetrics().getReceived(Message.CONNECT, false) == received + 1) {
+                delivered++;
+                assertEquals(0, dropped);
+            } else {
+                assertEquals(1, dropped);
+            }
+        }
+        assertTrue(delivered >= 15);
+    }
+}
@@ -0,0 +1,79 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static class RecordingTimeout extends TimingWheel.Timeout {
+        final ArrayList<Long> mExpired = new ArrayList<Long>();
+
+        @Override
+        protected void onExpired(long now) {
+            mExpired.add(now);
+        }
+    }
+
+    @Test
+    public void testExpiresAtDeadline() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        RecordingTimeout a = new RecordingTimeout();
+        RecordingTimeout b = new RecordingTimeout();
+        wheel.schedule(a, 25);
+        wheel.schedule(b, 500);
+
+        wheel.advance(20);
+        assertTrue(a.mExpired.isEmpty());
+        wheel.advance(30);
+        assertEquals(1, a.mExpired.size());
+        assertFalse(a.isScheduled());
+
+        //b is more than one revolution away
+        wheel.advance(490);
+        assertTrue(b.mExpired.isEmpty());
+        wheel.advance(500);
+        assertEquals(1, b.mExpired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        RecordingTimeout a = new RecordingTimeout();
+        wheel.schedule(a, 50);
+        wheel.cancel(a);
+        wheel.advance(1000);
+        assertTrue(a.mExpired.isEmpty());
+    }
+
+    @Test
+    public void testCallbackCancelsSibling() {
+        final TimingWheel wheel = new TimingWheel(10, 8, 0);
+        final RecordingTimeout b = new RecordingTimeout();
+        TimingWheel.Timeout a = new TimingWheel.Timeout() {
+            @Override
+            protected void onExpired(long now) {
+                wheel.cancel(b);
+            }
+        };
+        wheel.schedule(b, 30);
+        wheel.schedule(a, 30);
+
+        wheel.advance(100);
+        assertTrue(b.mExpired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLargeJump() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        RecordingTimeout a = new RecordingTimeout();
+        wheel.schedule(a, 40);
+        wheel.advance(100000);
+        assertEquals(1, a.mExpired.size());
+    }
+}
@@ -0,0 +1,109 @@
+package com.devsmart.kademlia;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ValueStoreTest {
+
+    private static ID createRandomId(Random r) {
+        byte[] iddata = new byte[ID.NUM_BYTES];
+        r.nextBytes(iddata);
+        return new ID(iddata, 0);
+    }
+
+    @Test
+    public void testPutGet() {
+        Random r = new Random(1);
+        ValueStore store = new ValueStore(1024 * 1024);
+        ID[] keys = new ID[10000];
+        for(int i=0;i<keys.length;i++) {
+            keys[i] = createRandomId(r);
+            assertTrue(store.put(keys[i], new byte[] { (byte) i, (byte) (i >>> 8) }, 1000));
+        }
+        assertEquals(keys.length, store.size());
+
+        for(int i=0;i<keys.length;i++) {
+            assertArrayEquals(new byte[] { (byte) i, (byte) (i >>> 8) }, store.get(keys[i], 0));
+        }
+        assertNull(store.get(createRandomId(r), 0));
+
+        //overwrite
+        assertTrue(store.put(keys[0], new byte[] { 42 }, 1000));
+        assertEquals(keys.length, store.size());
+        assertArrayEquals(new byte[] { 42 }, store.get(keys[0], 0));
+
+        assertTrue(store.remove(keys[1]));
+        assertNull(store.get(keys[1], 0));
+        assertEquals(keys.length - 1, store.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        Random r = new Random(1);
+        ValueStore store = new ValueStore(1024 * 1024);
+        ID a = createRandomId(r);
+        ID b = createRandomId(r);
+        store.put(a, new byte[] { 1 }, 100);
+        store.put(b, new byte[] { 2 }, 200);
+
+        assertNull(store.get(a, 100));
+        assertEquals(1, store.size());
+
+        assertEquals(1, store.purgeExpired(200));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictsOldest() {
+        Random r = new Random(1);
+        final int valueLength = 100;
+        ValueStore store = new ValueStore(4096);
+        ID[] keys = new ID[1000];
+        for(int i=0;i<keys.length;i++) {
+            keys[i] = createRandomId(r);
+            byte[] value = new byte[valueLength];
+            value[0] = (byte) i;
+            assertTrue(store.put(keys[i], value, Long.MAX_VALUE));
+            assertTrue(store.getUsedBytes() <= store.getCapacity());
+
+            byte[] latest = store.get(keys[i], 0);
+            assertNotNull(latest);
+            assertEquals((byte) i, latest[0]);
+        }
+
+        //the newest records survive, the oldest were evicted
+        final int numLive = store.size();
+        assertTrue(numLive > 0 && numLive < 4096 / valueLength);
+        for(int i=0;i<keys.length - numLive;i++) {
+            assertNull(store.get(keys[i], 0));
+        }
+        for(int i=keys.length - numLive;i<keys.length;i++) {
+            assertEquals((byte) i, store.get(keys[i], 0)[0]);
+        }
+
+        assertFalse(new ValueStore(1000).put(createRandomId(r), new byte[1000], Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMaxValueLength() {
+        Random r = new Random(1);
+        ValueStore store = new ValueStore();
+        ID key = createRandomId(r);
+        assertTrue(store.put(key, new byte[ValueStore.MAX_VALUE_LENGTH], 1000));
+        assertEquals(ValueStore.MAX_VALUE_LENGTH, store.get(key, 0).length);
+
+        assertFalse(store.put(key, new byte[ValueStore.MAX_VALUE_LENGTH + 1], 1000));
+        assertEquals(ValueStore.MAX_VALUE_LENGTH, store.get(key, 0).length);
+
+        //a stored value always fits in a FIND_VALUE response
+        Message response = new Message(ByteBuffer.allocate(Message.FindValueMessage.MAX_RESPONSE_LENGTH));
+        assertEquals(ValueStore.MAX_VALUE_LENGTH, store.get(key.getHigh(), key.getMid(), key.getLow(), 0,
+                response.mBuffer, Message.FindValueMessage.VALUE_RESPONSE_OFFSET));
+    }
+}